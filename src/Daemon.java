@@ -0,0 +1,220 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import control.CommandLine;
+import control.CompilationContext;
+
+// The compile daemon: a compiler kept running behind a Unix domain
+// socket, so a compilation pays neither for starting a JVM nor for
+// warming its JIT up. Requests are served one at a time, each
+// with the command line of "java Tiger", and share the symbol
+// table (and the tree cache, if any) of the daemon. Each request
+// runs in a context of its own, with the options of the daemon
+// where its command line sets none.
+//
+// A request is the number of arguments, then the arguments, in
+// "DataOutput.writeUTF()" form. The reply is the output of the
+// compilation as frames (a length, then as many bytes), ended by
+// the length -1 and the exit status. The integers are big-endian.
+// Besides "-client", which starts a JVM for each request, the
+// script "test/client.sh" speaks this with socat or netcat. A
+// request may not hold "-server", "-client" nor "-train".
+//
+// Whoever can connect to the socket can have the daemon read any
+// file the daemon can, so the socket is for its owner only.
+public class Daemon
+{
+  // the options whose argument is a path
+  static final List<String> PATHS = List.of("-cache");
+
+  // the output of a request, framed onto the socket
+  static class Frames extends OutputStream
+  {
+    DataOutputStream out;
+
+    Frames(DataOutputStream out)
+    {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      write(new byte[] { (byte) b }, 0, 1);
+      return;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      if (len == 0)
+        return;
+      this.out.writeInt(len);
+      this.out.write(b, off, len);
+      return;
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+      this.out.flush();
+      return;
+    }
+  }
+
+  // serve requests on the socket "ctx.server", for ever, with the
+  // options of "ctx" as the defaults
+  static int serve(CompilationContext ctx)
+  {
+    String socket = ctx.server;
+    Path path = Paths.get(socket);
+
+    try (ServerSocketChannel server = ServerSocketChannel
+        .open(StandardProtocolFamily.UNIX)) {
+      Files.deleteIfExists(path);
+      bind(server, path);
+      System.out.println("serving on " + socket);
+      for (;;) {
+        try (SocketChannel ch = server.accept()) {
+          handle(ch, ctx);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      return 1;
+    }
+  }
+
+  // Bind "server" to "path", with the socket readable and writable
+  // by its owner only. It is bound in a directory only the owner can
+  // enter, made rw-------, and only then moved to "path", so nobody
+  // else can connect in between, whatever the umask.
+  private static void bind(ServerSocketChannel server, Path path)
+      throws IOException
+  {
+    Path parent = path.toAbsolutePath().getParent();
+    Path dir = Files.createTempDirectory(parent, ".tiger", PosixFilePermissions
+        .asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+    Path tmp = dir.resolve("socket");
+
+    try {
+      server.bind(UnixDomainSocketAddress.of(tmp));
+      Files.setPosixFilePermissions(tmp, PosixFilePermissions
+          .fromString("rw-------"));
+      Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+      Files.delete(dir);
+    }
+    return;
+  }
+
+  private static void handle(SocketChannel ch, CompilationContext ctx)
+      throws IOException
+  {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        Channels.newInputStream(ch)));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        Channels.newOutputStream(ch)));
+    String[] args = new String[in.readInt()];
+    for (int i = 0; i < args.length; i++)
+      args[i] = in.readUTF();
+
+    PrintStream stdout = System.out;
+    PrintStream stderr = System.err;
+    PrintStream frames = new PrintStream(new BufferedOutputStream(
+        new Frames(out), 8192), false);
+    int status;
+    System.setOut(frames);
+    System.setErr(frames);
+    try {
+      status = Tiger.run(args, ctx, true);
+    } catch (CommandLine.Exit e) {
+      status = e.status;
+    } catch (Throwable e) {
+      // a bug in the compiler must not bring the daemon down
+      e.printStackTrace();
+      status = 1;
+    } finally {
+      System.setOut(stdout);
+      System.setErr(stderr);
+    }
+    frames.flush();
+    out.writeInt(-1);
+    out.writeInt(status);
+    out.flush();
+    return;
+  }
+
+  // Send the command line "args" (without the "-client" option)
+  // to the daemon on the socket "socket", copy the output of the
+  // compilation to ours, and return its exit status. The daemon
+  // runs in a directory of its own, so the files to compile, and
+  // the paths given to options, are sent absolute (and "args"
+  // already has the argument files expanded).
+  static int request(String socket, String[] args, List<String> files)
+  {
+    ArrayList<String> request = new ArrayList<String>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-client")) {
+        i++;
+        continue;
+      }
+      if (PATHS.contains(args[i]) && i + 1 < args.length) {
+        request.add(args[i]);
+        request.add(new File(args[++i]).getAbsolutePath());
+      } else if (files.contains(args[i]))
+        request.add(new File(args[i]).getAbsolutePath());
+      else
+        request.add(args[i]);
+    }
+
+    try (SocketChannel ch = SocketChannel.open(UnixDomainSocketAddress
+        .of(socket))) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          Channels.newOutputStream(ch)));
+      out.writeInt(request.size());
+      for (String arg : request)
+        out.writeUTF(arg);
+      out.flush();
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          Channels.newInputStream(ch)));
+      byte[] buf = new byte[8192];
+      for (;;) {
+        int len = in.readInt();
+        if (len < 0)
+          break;
+        if (len > buf.length)
+          buf = new byte[len];
+        in.readFully(buf, 0, len);
+        System.out.write(buf, 0, len);
+      }
+      System.out.flush();
+      return in.readInt();
+    } catch (IOException e) {
+      System.out.println("no compile daemon on " + socket + ": " + e);
+      return 1;
+    }
+  }
+}
@@ -1,80 +1,360 @@
-import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
+import ast.Ast;
+import ast.AstCache;
 import lexer.Lexer;
 import lexer.Token;
 import parser.Parser;
 import control.CommandLine;
+import control.CompilationContext;
 import control.Control;
+import control.Diagnostic;
+import util.SymbolTable;
 
 public class Tiger
 {
-  public static void main(String[] args)
+  // open a lexer on the file "fname", which the caller should
+  // close. Files larger than the "-mmap" threshold are
+  // memory-mapped, the others are read through a stream.
+  static Lexer openLexer(CompilationContext ctx, String fname)
+      throws Exception
+  {
+    File file = new File(fname);
+    long size = file.length();
+
+    // a single mapping can not be larger than 2G
+    if (size >= ctx.mmapThreshold && size <= Integer.MAX_VALUE)
+      return new Lexer(file.toPath(), ctx);
+    return new Lexer(fname, new FileInputStream(file), ctx);
+  }
+
+  // the tree of the file "fname": loaded from the tree cache if
+  // the file is unchanged since it was stored there, else lexed
+  // and parsed (and then stored, if free of errors). The method
+  // bodies skipped by the lazy mode are all parsed here, before
+  // anyone looks at the errors: a syntax error in a body counts as
+  // much as any other. This makes the lazy mode a second pass, not
+  // a saving.
+  public static Ast parse(CompilationContext ctx, String fname)
+      throws Exception
   {
-    InputStream fstream;
+    AstCache cache = null;
+    String key = null;
+
+    if (ctx.cache != null) {
+      cache = new AstCache(Paths.get(ctx.cache), (long) ctx.cacheLimit << 20);
+      key = AstCache.key(Paths.get(fname));
+      Ast ast = cache.load(key, ctx.symbols);
+      if (ast != null)
+        return ast;
+    }
+
     Parser parser;
+    Ast ast;
+    try (Lexer lexer = openLexer(ctx, fname)) {
+      parser = new Parser(lexer);
+      ast = parser.parse();
+    }
+    for (Parser.LazyBody body : parser.bodies())
+      parser.parseBody(body);
+    ctx.skippedBodies += parser.skippedBodies();
+    ctx.materializedBodies += parser.materializedBodies();
+    if (cache != null && !ctx.hasErrors())
+      cache.store(key, ast);
+    return ast;
+  }
+
+  // the compilation of a file: its context (with the
+  // diagnostics), its tree, and the time it took
+  public static class Compilation
+  {
+    public String fname;
+    public CompilationContext ctx;
+    public Ast ast;
+    public long nanos;
+
+    Compilation(String fname)
+    {
+      this.fname = fname;
+      this.ctx = null;
+      this.ast = null;
+      this.nanos = 0;
+    }
+
+    // A file that can not be read is an error of its own, rather
+    // than the end of the other compilations.
+    Compilation run(CompilationContext options, SymbolTable symbols)
+    {
+      long start = System.nanoTime();
+
+      this.ctx = new CompilationContext(options, symbols);
+      try {
+        this.ast = parse(this.ctx, this.fname);
+      } catch (Exception e) {
+        this.ctx.error(this.fname, 0, 0, "can not compile: " + e);
+      }
+      this.nanos = System.nanoTime() - start;
+      return this;
+    }
+  }
+
+  // Compile the files "fnames" on a pool of "ctx.jobs" threads,
+  // each in a context of its own (with the options of "ctx"), and
+  // return the compilations in the order of "fnames". Each thread
+  // keeps one symbol table for all the files it compiles, so the
+  // names common to the files are interned once per thread, and no
+  // lock is taken to intern them.
+  public static List<Compilation> compileAll(CompilationContext ctx,
+      List<String> fnames) throws Exception
+  {
+    ExecutorService pool = Executors.newFixedThreadPool(ctx.jobs);
+    ThreadLocal<SymbolTable> symbols = ThreadLocal
+        .withInitial(SymbolTable::new);
+    List<Future<Compilation>> futures = new ArrayList<Future<Compilation>>();
+    List<Compilation> result = new ArrayList<Compilation>();
+
+    try {
+      for (String fname : fnames) {
+        Compilation c = new Compilation(fname);
+        futures.add(pool.submit(() -> c.run(ctx, symbols.get())));
+      }
+      for (Future<Compilation> f : futures)
+        result.add(f.get());
+    } finally {
+      pool.shutdown();
+    }
+    return result;
+  }
+
+  // the files named by "names": a directory names the .java files
+  // under it, in order
+  static List<String> sources(List<String> names) throws Exception
+  {
+    List<String> fnames = new ArrayList<String>();
+
+    for (String name : names) {
+      Path path = Paths.get(name);
+      if (!Files.isDirectory(path)) {
+        fnames.add(name);
+        continue;
+      }
+      try (Stream<Path> s = Files.walk(path)) {
+        s.filter(f -> f.toString().endsWith(".java") && Files.isRegularFile(f))
+            .sorted().forEach(f -> fnames.add(f.toString()));
+      }
+    }
+    return fnames;
+  }
+
+  // Compile all the files named by "names" in one JVM, on the
+  // "-jobs" threads, then print the diagnostics and the time of
+  // each file, and a summary. The exit status is 1 if any file
+  // has errors.
+  static int batch(CompilationContext ctx, List<String> names)
+  {
+    List<Compilation> compilations;
+    long start = System.nanoTime();
+    long wall;
+
+    try {
+      compilations = compileAll(ctx, sources(names));
+      wall = System.nanoTime() - start;
+    } catch (Exception e) {
+      e.printStackTrace();
+      return 1;
+    }
 
+    int failed = 0;
+    long total = 0;
+    CompilationContext all = new CompilationContext(ctx, ctx.symbols);
+    for (Compilation c : compilations) {
+      if (printDiagnostics(c.ctx))
+        failed++;
+      total += c.nanos;
+      all.skippedBodies += c.ctx.skippedBodies;
+      all.materializedBodies += c.ctx.materializedBodies;
+    }
+    for (Compilation c : compilations)
+      System.out.println(String.format("%10.2f ms  %s%s", c.nanos / 1e6,
+          c.fname, c.ctx.hasErrors() ? " (errors)" : ""));
+    System.out.println(String.format(
+        "%d file(s), %d with errors: %.2f ms of compilation in %.2f ms"
+            + " on %d thread(s)", compilations.size(), failed, total / 1e6,
+        wall / 1e6, ctx.jobs));
+    try {
+      printCacheStats(all);
+    } catch (Exception e) {
+      e.printStackTrace();
+      return 1;
+    }
+    return failed > 0 ? 1 : 0;
+  }
+
+  // print the hits and misses of the tree cache, and how many
+  // method bodies the lazy mode skipped and parsed later, if asked
+  // to
+  static void printCacheStats(CompilationContext ctx) throws Exception
+  {
+    if (ctx.cacheStats && ctx.cache != null) {
+      long[] s = new AstCache(Paths.get(ctx.cache), 0).stats();
+      System.out.println("tree cache: " + s[0] + " hits, " + s[1]
+          + " misses");
+    }
+    if (ctx.cacheStats && ctx.lazy)
+      System.out.println("lazy bodies: " + ctx.skippedBodies + " skipped, "
+          + ctx.materializedBodies + " parsed");
+    return;
+  }
+
+  // print the diagnostics of "ctx", and tell whether there were any
+  static boolean printDiagnostics(CompilationContext ctx)
+  {
+    List<Diagnostic> diagnostics = ctx.diagnostics();
+
+    for (Diagnostic d : diagnostics)
+      System.out.println(d);
+    if (!diagnostics.isEmpty())
+      System.out.println(diagnostics.size() + " error(s)");
+    return !diagnostics.isEmpty();
+  }
+
+  // Run the compiler on the command line "args", with the options
+  // of "defaults" where it sets none, and the symbol table of
+  // "defaults", and return the exit status. The compile daemon
+  // runs each request through here ("embedded"), with its own
+  // options as the defaults, so nothing below may exit the JVM, nor
+  // change "defaults".
+  static int run(String[] args, CompilationContext defaults,
+      boolean embedded)
+  {
     // ///////////////////////////////////////////////////////
     // handle command line arguments
-    CommandLine cmd = new CommandLine();
+    CompilationContext ctx = new CompilationContext(defaults,
+        defaults.symbols);
+    CommandLine cmd = new CommandLine(ctx, embedded);
     String fname = cmd.scan(args);
 
+    // the compile daemon, and its client
+    if (!embedded && ctx.server != null)
+      return Daemon.serve(ctx);
+    if (!embedded && ctx.client != null)
+      return Daemon.request(ctx.client, cmd.arguments(), cmd.files());
+    if (!embedded && ctx.train != null)
+      return train(ctx);
+
     // /////////////////////////////////////////////
-    // the straight-line interpreter (and compiler)    
-    switch (Control.ConSlp.action){
-    case NONE:
-      System.exit(0);
-      break;
-    default:
-      slp.Main slpmain = new slp.Main();
-      if (Control.ConSlp.div) {
-        slpmain.doit(slp.Samples.dividebyzero);
-        System.exit(0);
-      }
-      slpmain.doit(slp.Samples.prog);
-      System.exit(0);
-    }
+    // the straight-line interpreter (and compiler), in a method
+    // of its own so its classes are only loaded when it runs
+    if (ctx.slpAction != Control.ConSlp.T.NONE || ctx.slpGen != null)
+      return runSlp(ctx, fname);
 
-    
     if (fname == null) {
       cmd.usage();
-      return;
+      return 0;
     }
 
+    // /////////////////////////////////////////////////////
+    // batch mode: several files, or a directory of them
+    if (cmd.files().size() > 1 || new File(fname).isDirectory())
+      return batch(ctx, cmd.files());
+
     // /////////////////////////////////////////////////////
     // it would be helpful to be able to test the lexer
     // independently.
-    if (Control.ConLexer.test) {
+    if (ctx.testLexer) {
       System.out.println("Testing the lexer. All tokens:");
-      try {
-        fstream = new BufferedInputStream(new FileInputStream(fname));
-        Lexer lexer = new Lexer(fname, fstream);
+      try (Lexer lexer = openLexer(ctx, fname)) {
         Token token = lexer.nextToken();
         while (token.kind != Token.Kind.TOKEN_EOF) {
           System.out.println(token.toString());
           token = lexer.nextToken();
         }
-        fstream.close();
       } catch (Exception e) {
         e.printStackTrace();
       }
-      System.exit(1);
+      printDiagnostics(ctx);
+      return 1;
     }
 
     // /////////////////////////////////////////////////////////
-    // normal compilation phases.
+    // normal compilation phases. The driver alone decides how the
+    // compiler exits.
     try {
-      fstream = new BufferedInputStream(new FileInputStream(fname));
-      parser = new Parser(fname, fstream);
+      parse(ctx, fname);
+      if (printDiagnostics(ctx))
+        return 1;
 
-      parser.parse();
-
-      fstream.close();
+      printCacheStats(ctx);
     } catch (Exception e) {
       e.printStackTrace();
-      System.exit(1);
+      return 1;
+    }
+    return 0;
+  }
+
+  // Print a random program, or run the program in the file
+  // "fname", or a sample one if there is no file.
+  static int runSlp(CompilationContext ctx, String fname)
+  {
+    if (ctx.slpGen != null) {
+      new slp.Generator((int) ctx.slpGen[0], (int) ctx.slpGen[1],
+          ctx.slpGen[2]).generate(System.out);
+      return 0;
+    }
+
+    slp.Slp.Stm.T prog;
+    if (fname != null) {
+      try (InputStream in = Files.newInputStream(Paths.get(fname))) {
+        prog = new slp.Parser(fname, in, ctx).parse();
+      } catch (IOException e) {
+        ctx.error(fname, 0, 0, e.toString());
+        prog = null;
+      }
+      if (prog == null) {
+        printDiagnostics(ctx);
+        return 1;
+      }
+    } else if (ctx.slpDiv)
+      prog = slp.Samples.dividebyzero;
+    else
+      prog = slp.Samples.prog;
+    new slp.Main(fname != null ? fname : "slp", ctx).doit(prog);
+    return printDiagnostics(ctx) ? 1 : 0;
+  }
+
+  // Compile all the .java files under the directory "ctx.train", so a
+  // JVM started with "-XX:ArchiveClassesAtExit" archives the
+  // classes a compilation needs (see "test/train.bat"). The errors
+  // in the files do not matter.
+  static int train(CompilationContext ctx)
+  {
+    if (!new File(ctx.train).isDirectory()) {
+      System.out.println("not a directory: " + ctx.train);
+      return 1;
     }
+    ctx.jobs = 1;
+    batch(ctx, List.of(ctx.train));
+    return 0;
+  }
+
+  public static void main(String[] args)
+  {
+    int status = run(args, new CompilationContext(), false);
+
+    if (status != 0)
+      System.exit(status);
     return;
   }
 }
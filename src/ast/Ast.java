@@ -0,0 +1,263 @@
+package ast;
+
+import java.util.Arrays;
+
+import util.SymbolTable;
+
+// The abstract syntax tree of a MiniJava program, in a flat form:
+// a node is an index into a few parallel int arrays, instead of a
+// Java object, so a large tree costs a few arrays rather than
+// millions of small objects, and is laid out in parse order.
+// Children are kept as a first-child/next-sibling list.
+public class Ast
+{
+  public enum Kind {
+    // declarations
+    PROGRAM, // MainClass ClassDecl*
+    MAIN_CLASS, // value: class name, aux: argument name; Statement
+    CLASS, // value: name, aux: super class name or -1; VarDecl* Method*
+    VAR_DECL, // value: name; Type
+    METHOD, // value: name; Type Formal* Body
+    FORMAL, // value: name; Type
+    BODY, // VarDecl* Statement* Exp (the return value)
+    // types
+    TYPE_BOOLEAN,
+    TYPE_CLASS, // value: class name
+    TYPE_INT,
+    TYPE_INT_ARRAY,
+    // statements
+    BLOCK, // Statement*
+    IF, // Exp Statement Statement
+    WHILE, // Exp Statement
+    PRINT, // Exp
+    ASSIGN, // value: name; Exp
+    ARRAY_ASSIGN, // value: name; Exp (index) Exp
+    // expressions
+    AND, // Exp Exp
+    LT, // Exp Exp
+    ADD, // Exp Exp
+    SUB, // Exp Exp
+    TIMES, // Exp Exp
+    NOT, // Exp
+    ARRAY_SELECT, // Exp (array) Exp (index)
+    LENGTH, // Exp
+    CALL, // value: method name; Exp (receiver) Exp* (arguments)
+    NUM, // value: the literal
+    TRUE,
+    FALSE,
+    THIS,
+    ID, // value: name
+    NEW_ARRAY, // Exp (size)
+    NEW_OBJECT, // value: class name
+  }
+
+  static final Kind[] kinds = Kind.values();
+
+  public SymbolTable symbols; // where the names are interned
+  int[] kind;
+  int[] line;
+  int[] value; // a symbol id, or -1
+  int[] aux; // a second symbol id, or -1
+  int[] child; // first child, or -1
+  int[] last; // last child, or -1
+  int[] next; // next sibling, or -1
+  int size;
+
+  public Ast(SymbolTable symbols)
+  {
+    this(symbols, 1024);
+  }
+
+  // an empty tree with room for "n" nodes
+  public Ast(SymbolTable symbols, int n)
+  {
+    this.symbols = symbols;
+    this.kind = new int[n];
+    this.line = new int[n];
+    this.value = new int[n];
+    this.aux = new int[n];
+    this.child = new int[n];
+    this.last = new int[n];
+    this.next = new int[n];
+    this.size = 0;
+  }
+
+  private void grow(int n)
+  {
+    this.kind = Arrays.copyOf(this.kind, n);
+    this.line = Arrays.copyOf(this.line, n);
+    this.value = Arrays.copyOf(this.value, n);
+    this.aux = Arrays.copyOf(this.aux, n);
+    this.child = Arrays.copyOf(this.child, n);
+    this.last = Arrays.copyOf(this.last, n);
+    this.next = Arrays.copyOf(this.next, n);
+    return;
+  }
+
+  // ///////////////////////////////////////////////////
+  // building
+
+  public int node(Kind k, int line, int value, int aux)
+  {
+    if (this.size == this.kind.length)
+      grow(2 * this.size);
+    int n = this.size++;
+    this.kind[n] = k.ordinal();
+    this.line[n] = line;
+    this.value[n] = value;
+    this.aux[n] = aux;
+    this.child[n] = -1;
+    this.last[n] = -1;
+    this.next[n] = -1;
+    return n;
+  }
+
+  public int node(Kind k, int line, int value)
+  {
+    return node(k, line, value, -1);
+  }
+
+  public int node(Kind k, int line)
+  {
+    return node(k, line, -1, -1);
+  }
+
+  // append "c" to the children of "n"
+  public void add(int n, int c)
+  {
+    if (this.last[n] < 0)
+      this.child[n] = c;
+    else
+      this.next[this.last[n]] = c;
+    this.last[n] = c;
+    return;
+  }
+
+  public void setAux(int n, int aux)
+  {
+    this.aux[n] = aux;
+    return;
+  }
+
+  // Copy all the nodes of "other" (built with the same symbol
+  // table) to the end of this tree, and return the new number of
+  // the node "n" of "other": the nodes of "other" are renumbered
+  // from the old size of this tree on.
+  public int graft(Ast other, int n)
+  {
+    int offset = this.size;
+    int m = other.size;
+
+    if (offset + m > this.kind.length)
+      grow(Math.max(2 * this.kind.length, offset + m));
+    System.arraycopy(other.kind, 0, this.kind, offset, m);
+    System.arraycopy(other.line, 0, this.line, offset, m);
+    System.arraycopy(other.value, 0, this.value, offset, m);
+    System.arraycopy(other.aux, 0, this.aux, offset, m);
+    for (int i = 0; i < m; i++) {
+      this.child[offset + i] = relocate(other.child[i], offset);
+      this.last[offset + i] = relocate(other.last[i], offset);
+      this.next[offset + i] = relocate(other.next[i], offset);
+    }
+    this.size += m;
+    return n + offset;
+  }
+
+  private static int relocate(int n, int offset)
+  {
+    return n < 0 ? n : n + offset;
+  }
+
+  // ///////////////////////////////////////////////////
+  // accessors
+
+  public int size()
+  {
+    return this.size;
+  }
+
+  public Kind kind(int n)
+  {
+    return kinds[this.kind[n]];
+  }
+
+  public int line(int n)
+  {
+    return this.line[n];
+  }
+
+  public int value(int n)
+  {
+    return this.value[n];
+  }
+
+  public int aux(int n)
+  {
+    return this.aux[n];
+  }
+
+  // the name (or literal) in the "value" of "n"
+  public String name(int n)
+  {
+    return this.symbols.name(this.value[n]);
+  }
+
+  // the first child of "n", or -1
+  public int child(int n)
+  {
+    return this.child[n];
+  }
+
+  // the next sibling of "n", or -1
+  public int next(int n)
+  {
+    return this.next[n];
+  }
+
+  // the i-th child of "n", or -1
+  public int child(int n, int i)
+  {
+    int c = this.child[n];
+    while (c >= 0 && i-- > 0)
+      c = this.next[c];
+    return c;
+  }
+
+  public int children(int n)
+  {
+    int count = 0;
+    for (int c = this.child[n]; c >= 0; c = this.next[c])
+      count++;
+    return count;
+  }
+
+  // Visit the tree under "root" in depth-first order, with an
+  // explicit stack, so the depth of the tree does not matter.
+  public void walk(int root, Visitor v)
+  {
+    int[] stack = new int[64];
+    int top = 0;
+
+    // a node on the stack is entered when non-negative, and left
+    // when encoded as ~n
+    stack[top++] = root;
+    while (top > 0) {
+      int n = stack[--top];
+      if (n < 0) {
+        v.leave(this, ~n);
+        continue;
+      }
+      int k = children(n);
+      if (top + 1 + k > stack.length)
+        stack = Arrays.copyOf(stack, 2 * (top + 1 + k));
+      stack[top++] = ~n;
+      if (!v.enter(this, n))
+        continue;
+      // push the children in reverse, so the first is visited first
+      top += k;
+      for (int c = this.child[n], i = top - 1; c >= 0; c = this.next[c])
+        stack[i--] = c;
+    }
+    return;
+  }
+}
@@ -0,0 +1,314 @@
+package ast;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import util.SymbolTable;
+
+// An on-disk cache of parsed trees, keyed by the SHA-256 of the
+// source, so an unchanged file need not be lexed and parsed again.
+// Each tree is a file "<key>.ast" in the cache directory:
+//
+//   int magic, version, nodes, names
+//   names times: int length, then the bytes of the name
+//   nodes times each of: kind, line, value, aux, child, last, next
+//
+// all in native byte order. A tree only holds the names it uses,
+// renumbered from 0; they are interned again on loading, so the
+// tree can go into any symbol table. The file is memory-mapped on
+// loading and the arrays are copied out in bulk.
+//
+// The files are evicted least recently used first when the cache
+// grows beyond its limit; a hit bumps the modification time of
+// its file. The hits and misses are counted in the file "stats".
+// The compilations of a batch share the cache, so counting and
+// evicting take a lock.
+public class AstCache
+{
+  static final int MAGIC = 0x54415354; // "TAST"
+  static final int VERSION = 1;
+
+  Path dir;
+  long limit; // in bytes
+
+  public AstCache(Path dir, long limit)
+  {
+    this.dir = dir;
+    this.limit = limit;
+  }
+
+  // the key of the file "file": the SHA-256 of its content, in hex
+  public static String key(Path file) throws IOException
+  {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (java.security.NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = ch.size();
+      for (long off = 0; off < size; off += Integer.MAX_VALUE) {
+        long len = Math.min(size - off, Integer.MAX_VALUE);
+        md.update(ch.map(FileChannel.MapMode.READ_ONLY, off, len));
+      }
+    }
+    StringBuilder sb = new StringBuilder();
+    for (byte b : md.digest())
+      sb.append(String.format("%02x", b));
+    return sb.toString();
+  }
+
+  private Path file(String key)
+  {
+    return this.dir.resolve(key + ".ast");
+  }
+
+  // ///////////////////////////////////////////////////
+  // loading
+
+  // the tree stored under "key", with its names interned into
+  // "symbols", or null on a miss
+  public Ast load(String key, SymbolTable symbols) throws IOException
+  {
+    Path f = file(key);
+    Ast ast = null;
+
+    if (Files.isRegularFile(f)) {
+      try (FileChannel ch = FileChannel.open(f, StandardOpenOption.READ)) {
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+            ch.size());
+        buf.order(ByteOrder.nativeOrder());
+        ast = read(buf, symbols);
+      } catch (RuntimeException | InternalError e) {
+        // a file changed under the mapping (an InternalError), or
+        // one which "read" has missed a check on: a miss all the
+        // same, rather than the end of the compilation
+        ast = null;
+      }
+      if (ast != null)
+        Files.setLastModifiedTime(f, FileTime.fromMillis(System
+            .currentTimeMillis()));
+    }
+    count(ast != null);
+    return ast;
+  }
+
+  // A stale or broken file is taken as a miss: every count, length
+  // and index is checked against what was read before it is used,
+  // and the names are only interned once the whole file is found
+  // sound.
+  private static Ast read(ByteBuffer buf, SymbolTable symbols)
+  {
+    if (buf.remaining() < 16 || buf.getInt() != MAGIC
+        || buf.getInt() != VERSION)
+      return null;
+    int n = buf.getInt();
+    int m = buf.getInt();
+    // there is at least the root
+    if (n < 1 || m < 0 || m > buf.remaining() / 4)
+      return null;
+
+    // where the names are
+    int[] offsets = new int[m];
+    int[] lengths = new int[m];
+    for (int i = 0; i < m; i++) {
+      if (buf.remaining() < 4)
+        return null;
+      int len = buf.getInt();
+      if (len < 0 || buf.remaining() < len)
+        return null;
+      offsets[i] = buf.position();
+      lengths[i] = len;
+      buf.position(buf.position() + len);
+    }
+    if (buf.remaining() != 28L * n)
+      return null;
+
+    Ast ast = new Ast(symbols, n);
+    IntBuffer ints = buf.asIntBuffer();
+    ints.get(ast.kind, 0, n);
+    ints.get(ast.line, 0, n);
+    ints.get(ast.value, 0, n);
+    ints.get(ast.aux, 0, n);
+    ints.get(ast.child, 0, n);
+    ints.get(ast.last, 0, n);
+    ints.get(ast.next, 0, n);
+
+    // Each node but the root (node 0) is the first child or the
+    // next sibling of one node at most, so a walk from the root
+    // meets no node twice, and ends.
+    boolean[] linked = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      if (ast.kind[i] < 0 || ast.kind[i] >= Ast.kinds.length
+          || ast.value[i] < -1 || ast.value[i] >= m || ast.aux[i] < -1
+          || ast.aux[i] >= m || ast.last[i] < -1 || ast.last[i] >= n)
+        return null;
+      for (int c : new int[] { ast.child[i], ast.next[i] }) {
+        if (c == -1)
+          continue;
+        if (c <= 0 || c >= n || linked[c])
+          return null;
+        linked[c] = true;
+      }
+    }
+
+    // map the names of the file to ids of "symbols"
+    int[] ids = new int[m];
+    for (int i = 0; i < m; i++)
+      ids[i] = symbols.intern(buf, offsets[i], lengths[i]);
+    for (int i = 0; i < n; i++) {
+      if (ast.value[i] >= 0)
+        ast.value[i] = ids[ast.value[i]];
+      if (ast.aux[i] >= 0)
+        ast.aux[i] = ids[ast.aux[i]];
+    }
+    ast.size = n;
+    return ast;
+  }
+
+  // ///////////////////////////////////////////////////
+  // storing
+
+  // store "ast" under "key", then evict old trees down to the
+  // limit. The file is written aside and renamed into place, so
+  // a reader never sees half of it.
+  public void store(String key, Ast ast) throws IOException
+  {
+    int n = ast.size;
+
+    // renumber the names the tree uses
+    int[] local = new int[ast.symbols.size()];
+    Arrays.fill(local, -1);
+    ArrayList<byte[]> names = new ArrayList<byte[]>();
+    long bytes = 16;
+    for (int i = 0; i < n; i++) {
+      for (int id : new int[] { ast.value[i], ast.aux[i] }) {
+        if (id < 0 || local[id] >= 0)
+          continue;
+        local[id] = names.size();
+        byte[] name = ast.symbols.name(id).getBytes(
+            StandardCharsets.ISO_8859_1);
+        names.add(name);
+        bytes += 4 + name.length;
+      }
+    }
+    bytes += 28L * n;
+    if (bytes > Integer.MAX_VALUE || bytes > this.limit)
+      return;
+
+    ByteBuffer buf = ByteBuffer.allocate((int) bytes).order(
+        ByteOrder.nativeOrder());
+    buf.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(names.size());
+    for (byte[] name : names)
+      buf.putInt(name.length).put(name);
+    IntBuffer ints = buf.asIntBuffer();
+    ints.put(ast.kind, 0, n);
+    ints.put(ast.line, 0, n);
+    for (int i = 0; i < n; i++)
+      ints.put(ast.value[i] < 0 ? -1 : local[ast.value[i]]);
+    for (int i = 0; i < n; i++)
+      ints.put(ast.aux[i] < 0 ? -1 : local[ast.aux[i]]);
+    ints.put(ast.child, 0, n);
+    ints.put(ast.last, 0, n);
+    ints.put(ast.next, 0, n);
+    buf.rewind();
+
+    Files.createDirectories(this.dir);
+    Path tmp = Files.createTempFile(this.dir, key, ".tmp");
+    try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+      while (buf.hasRemaining())
+        ch.write(buf);
+    }
+    Files.move(tmp, file(key), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    evict();
+    return;
+  }
+
+  // delete the least recently used trees until the cache fits in
+  // its limit
+  private void evict() throws IOException
+  {
+    synchronized (AstCache.class) {
+      evictLocked();
+    }
+    return;
+  }
+
+  private void evictLocked() throws IOException
+  {
+    ArrayList<Path> files = new ArrayList<Path>();
+    long total = 0;
+
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(this.dir,
+        "*.ast")) {
+      for (Path f : ds) {
+        files.add(f);
+        total += Files.size(f);
+      }
+    }
+    if (total <= this.limit)
+      return;
+    long[] times = new long[files.size()];
+    Integer[] order = new Integer[files.size()];
+    for (int i = 0; i < order.length; i++) {
+      times[i] = Files.getLastModifiedTime(files.get(i)).toMillis();
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(times[a], times[b]));
+    for (int i = 0; i < order.length && total > this.limit; i++) {
+      Path f = files.get(order[i]);
+      total -= Files.size(f);
+      Files.deleteIfExists(f);
+    }
+    return;
+  }
+
+  // ///////////////////////////////////////////////////
+  // statistics
+
+  // the hits and misses so far, from the file "stats"
+  public long[] stats() throws IOException
+  {
+    Path f = this.dir.resolve("stats");
+    long[] s = new long[2];
+
+    if (Files.isRegularFile(f)) {
+      ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(f));
+      if (buf.remaining() == 16) {
+        s[0] = buf.getLong();
+        s[1] = buf.getLong();
+      }
+    }
+    return s;
+  }
+
+  private void count(boolean hit) throws IOException
+  {
+    synchronized (AstCache.class) {
+      long[] s = stats();
+
+      s[hit ? 0 : 1]++;
+      Files.createDirectories(this.dir);
+      ByteBuffer buf = ByteBuffer.allocate(16);
+      buf.putLong(s[0]).putLong(s[1]);
+      Files.write(this.dir.resolve("stats"), buf.array());
+    }
+    return;
+  }
+}
@@ -0,0 +1,12 @@
+package ast;
+
+// A visitor over the flat tree (see "Ast.walk()").
+public interface Visitor
+{
+  // called before the children of "n" are visited; return false
+  // to skip them.
+  public boolean enter(Ast ast, int n);
+
+  // called after the children of "n" have been visited.
+  public void leave(Ast ast, int n);
+}
@@ -1,6 +1,11 @@
 package control;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 
 import util.Bug;
 import control.Control.ConSlp;
@@ -36,63 +41,171 @@ public class CommandLine
     }
   }
 
+  // Thrown instead of exiting when the command line of a request
+  // to the compile daemon is scanned, as the daemon must go on.
+  public static class Exit extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+    public int status;
+
+    Exit(int status)
+    {
+      super(null, null, false, false);
+      this.status = status;
+    }
+  }
+
   private LinkedList<Arg<Object>> args;
+  private boolean embedded; // scanning for the daemon
+  private String[] arguments; // as scanned, with the @files expanded
+  private ArrayList<String> files; // the files (or directories) to compile
 
+  public CommandLine(CompilationContext ctx)
+  {
+    this(ctx, false);
+  }
+
+  // a command line whose options go to "ctx"
   @SuppressWarnings("unchecked")
-  public CommandLine()
+  public CommandLine(CompilationContext ctx, boolean embedded)
   {
-    this.args = new util.Flist<Arg<Object>>().list(new Arg<Object>("help",
+    this.embedded = embedded;
+    this.args = new util.Flist<Arg<Object>>().list(new Arg<Object>("cache",
+        "<dir>", "keep parsed trees in <dir> for unchanged files",
+        Kind.String, (s) -> {
+          ctx.cache = (String) s;
+          return;
+        }), new Arg<Object>("cachesize", "<n>",
+        "limit the tree cache to <n> megabytes", Kind.Int, (n) -> {
+          ctx.cacheLimit = (Integer) n;
+          return;
+        }), new Arg<Object>("cachestats", null,
+        "print the hits and misses of the tree cache, and the lazy bodies",
+        Kind.Empty, (s) -> {
+          ctx.cacheStats = true;
+          return;
+        }), new Arg<Object>("client", "<socket>",
+        "compile through the daemon listening on <socket>", Kind.String,
+        (s) -> {
+          local("client");
+          ctx.client = (String) s;
+          return;
+        }), new Arg<Object>("help",
         null, "show this help information", Kind.Empty, (s) -> {
           usage();
-          System.exit(1);
+          exit(1);
+          return;
+        }), new Arg<Object>("jobs", "<n>",
+        "compile several files on <n> threads", Kind.Int, (n) -> {
+          ctx.jobs = Math.max(1, (Integer) n);
+          return;
+        }), new Arg<Object>("lazy", null,
+        "parse method bodies in a second pass", Kind.Empty, (s) -> {
+          ctx.lazy = true;
           return;
         }), new Arg<Object>("lex", null, "dump the result of lexical analysis",
         Kind.Empty, (s) -> {
-          Control.ConLexer.dump = true;
+          ctx.dumpTokens = true;
+          return;
+        }), new Arg<Object>("mmap", "<n>",
+        "memory-map input files of at least <n> bytes", Kind.Int, (n) -> {
+          ctx.mmapThreshold = (Integer) n;
+          return;
+        }), new Arg<Object>("parallel", null,
+        "parse top-level classes in parallel", Kind.Empty, (s) -> {
+          ctx.parallel = true;
+          return;
+        }), new Arg<Object>("pipeline", null,
+        "run the lexer and the parser on separate threads", Kind.Empty,
+        (s) -> {
+          ctx.pipeline = true;
+          return;
+        }), new Arg<Object>("server", "<socket>",
+        "run as a compile daemon listening on <socket>", Kind.String,
+        (s) -> {
+          local("server");
+          ctx.server = (String) s;
           return;
-        }), new Arg<Object>("slp", "{args|interp|compile}",
-        "run the SLP interpreter", Kind.String, (ss) -> {
+        }), new Arg<Object>("slp", "{args|interp|vm|jit|compile}",
+        "run the SLP interpreter on <filename>, or on a sample",
+        Kind.String, (ss) -> {
           String s = (String) ss;
 
           if (s.equals("args")) {
-            ConSlp.action = ConSlp.T.ARGS;
+            ctx.slpAction = ConSlp.T.ARGS;
           } else if (s.equals("interp"))
-            ConSlp.action = ConSlp.T.INTERP;
+            ctx.slpAction = ConSlp.T.INTERP;
+          else if (s.equals("vm"))
+            ctx.slpAction = ConSlp.T.VM;
+          else if (s.equals("jit"))
+            ctx.slpAction = ConSlp.T.JIT;
           else if (s.equals("compile"))
-            ConSlp.action = ConSlp.T.COMPILE;
+            ctx.slpAction = ConSlp.T.COMPILE;
           else if (s.equals("div"))
-            ConSlp.div = true;
+            ctx.slpDiv = true;
           else if (s.equals("keepasm"))
-            ConSlp.keepasm = true;
+            ctx.slpKeepasm = true;
+          else if (s.equals("regs"))
+            ctx.slpRegs = true;
+          else if (s.equals("noopt"))
+            ctx.slpOpt = false;
           else {
             System.out.println("bad argument: " + s);
             output();
-            System.exit(1);
+            exit(1);
           }
           return;
+        }), new Arg<Object>("slpgen", "<n>,<depth>[,<seed>]",
+        "print a random SLP program of <n> statements", Kind.StringList,
+        (ss) -> {
+          String[] s = (String[]) ss;
+          long[] gen = { 0, 0, 0 };
+
+          try {
+            if (s.length < 2 || s.length > 3)
+              throw new NumberFormatException();
+            for (int i = 0; i < s.length; i++)
+              gen[i] = Long.parseLong(s[i]);
+            if (gen[0] < 0 || gen[0] > Integer.MAX_VALUE || gen[1] < 0
+                || gen[1] > Integer.MAX_VALUE)
+              throw new NumberFormatException();
+          } catch (NumberFormatException e) {
+            System.out.println("Error: slpgen: requires <n>,<depth>[,<seed>]");
+            output();
+            exit(1);
+          }
+          ctx.slpGen = gen;
+          return;
+        }), new Arg<Object>("swar", "{true|false}",
+        "skip blanks and comments 8 bytes at a time", Kind.Bool, (b) -> {
+          ctx.swar = (Boolean) b;
+          return;
         }), new Arg<Object>("testlexer", null,
         "whether or not to test the lexer", Kind.Empty, (s) -> {
-          Control.ConLexer.test = true;
+          ctx.testLexer = true;
+          return;
+        }), new Arg<Object>("train", "<dir>",
+        "compile the files in <dir> to train a class-data archive",
+        Kind.String, (s) -> {
+          local("train");
+          ctx.train = (String) s;
           return;
         }));
   }
 
-  // scan the command line arguments, return the file name
-  // in it. The file name should be unique.
+  // Scan the command line arguments, and return the first file
+  // name in it, or null. All the files (and directories) named are
+  // in "files()": more than one is compiled in batch mode.
   public String scan(String[] cargs)
   {
-    String filename = null;
+    cargs = expand(cargs);
+    this.arguments = cargs;
+    this.files = new ArrayList<String>();
 
     for (int i = 0; i < cargs.length; i++) {
       if (!cargs[i].startsWith("-")) {
-        if (filename == null) {
-          filename = cargs[i];
-          continue;
-        } else {
-          System.out.println("Error: can only compile one Java file a time");
-          System.exit(1);
-        }
-      } else {
+        this.files.add(cargs[i]);
+        continue;
       }
 
       boolean found = false;
@@ -109,7 +222,7 @@ public class CommandLine
           if (i >= cargs.length - 1) {
             System.out.println("Error: "+cargs[i] + ": requires an argument");
             this.output();
-            System.exit(1);
+            exit(1);
           }
           i++;
           break;
@@ -125,7 +238,7 @@ public class CommandLine
           else {
             System.out.println("Error: "+arg.name + ": requires a boolean");
             this.output();
-            System.exit(1);
+            exit(1);
           }
           break;
         case Int:
@@ -135,7 +248,7 @@ public class CommandLine
           } catch (java.lang.NumberFormatException e) {
             System.out.println("Error: "+arg.name + ": requires an integer");
             this.output();
-            System.exit(1);
+            exit(1);
           }
           arg.action.f(num);
           break;
@@ -154,10 +267,71 @@ public class CommandLine
       if (!found) {
         System.out.println("invalid option: " + cargs[i]);
         this.output();
-        System.exit(1);
+        exit(1);
       }
     }
-    return filename;
+    return this.files.isEmpty() ? null : this.files.get(0);
+  }
+
+  // Replace each argument "@file" by the arguments in "file",
+  // separated by blanks, so a long list of files need not go on the
+  // command line. An argument file may name other argument files.
+  private String[] expand(String[] cargs)
+  {
+    ArrayList<String> result = new ArrayList<String>();
+
+    for (String arg : cargs) {
+      if (!arg.startsWith("@")) {
+        result.add(arg);
+        continue;
+      }
+      String text = null;
+      try {
+        text = new String(Files.readAllBytes(Paths.get(arg.substring(1))));
+      } catch (IOException e) {
+        System.out.println("Error: can not read argument file "
+            + arg.substring(1));
+        exit(1);
+      }
+      for (String s : expand(text.trim().split("\\s+")))
+        if (!s.isEmpty())
+          result.add(s);
+    }
+    return result.toArray(new String[result.size()]);
+  }
+
+  // the arguments of the last scan, with the @files expanded
+  public String[] arguments()
+  {
+    return this.arguments;
+  }
+
+  // the files (and directories) named on the command line
+  public List<String> files()
+  {
+    return this.files;
+  }
+
+  // The option "name" runs a JVM of its own (a daemon, a client,
+  // or a training run), so it can not be part of a request to the
+  // compile daemon: the request is refused, rather than the option
+  // ignored.
+  private void local(String name)
+  {
+    if (this.embedded) {
+      System.out.println("Error: -" + name
+          + ": not allowed in a request to the compile daemon");
+      exit(1);
+    }
+    return;
+  }
+
+  private void exit(int status)
+  {
+    if (this.embedded)
+      throw new Exit(status);
+    System.exit(status);
+    return;
   }
 
   private void outputSpace(int n)
@@ -203,7 +377,7 @@ public class CommandLine
   {
     System.out
         .println("The Tiger compiler. Copyright (C) 2013-, SSE of USTC.\n"
-            + "Usage: java Tiger [options] <filename>\n");
+            + "Usage: java Tiger [options] <filename>...\n");
     output();
     return;
   }
@@ -0,0 +1,181 @@
+package control;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import util.Label;
+import util.SymbolTable;
+
+// The state of one compilation: its options, which the command
+// line (see "CommandLine") fills in, and the phases read, together
+// with the counters for fresh labels and temporaries, the symbol
+// table and the diagnostics. Nothing in a context is shared with
+// another one (except a symbol table passed in on purpose), and
+// there is no global option, so several compilations can run at
+// the same time in one JVM.
+public class CompilationContext
+{
+  // the lexer
+  public boolean testLexer;
+  public boolean dumpTokens;
+  // files at least this large (in bytes) are memory-mapped
+  // instead of being read through a stream
+  public long mmapThreshold;
+  // skip blanks and comments 8 bytes at a time
+  public boolean swar;
+  // run the lexer on its own thread, ahead of the parser
+  public boolean pipeline;
+
+  // the parser
+  // parse top-level classes in parallel
+  public boolean parallel;
+  // skip method bodies, and parse them in a second pass
+  public boolean lazy;
+  // the directory of the tree cache, null for no cache
+  public String cache;
+  // the size limit of the tree cache, in megabytes
+  public int cacheLimit;
+  // print the hits and misses of the tree cache
+  public boolean cacheStats;
+
+  // the driver
+  // compile the files in this directory, to train a class-data
+  // sharing archive
+  public String train;
+  // the threads to compile several files on
+  public int jobs;
+
+  // the compile daemon
+  // the socket to serve requests on, if a daemon
+  public String server;
+  // the socket of the daemon to send the request to, if a client
+  public String client;
+
+  // the straight-line program interpreter
+  public Control.ConSlp.T slpAction;
+  public boolean slpDiv;
+  public boolean slpKeepasm;
+  public boolean slpRegs; // keep values in registers
+  public boolean slpOpt; // fold constants, drop dead code
+  // generate a random program: statements, depth, seed
+  public long[] slpGen;
+
+  // the method bodies the parser skipped in the lazy mode, and
+  // those of them parsed since
+  public int skippedBodies;
+  public int materializedBodies;
+
+  public SymbolTable symbols; // where the names are interned
+  private ArrayList<Diagnostic> diagnostics;
+  private int labels;
+  private int temps;
+
+  public CompilationContext()
+  {
+    this(new SymbolTable());
+  }
+
+  // a context with the default options
+  public CompilationContext(SymbolTable symbols)
+  {
+    this.testLexer = false;
+    this.dumpTokens = false;
+    this.mmapThreshold = 16 << 20;
+    this.swar = true;
+    this.pipeline = false;
+
+    this.parallel = false;
+    this.lazy = false;
+    this.cache = null;
+    this.cacheLimit = 256;
+    this.cacheStats = false;
+
+    this.train = null;
+    this.jobs = Runtime.getRuntime().availableProcessors();
+
+    this.server = null;
+    this.client = null;
+
+    this.slpAction = Control.ConSlp.T.NONE;
+    this.slpDiv = false;
+    this.slpKeepasm = false;
+    this.slpRegs = false;
+    this.slpOpt = true;
+    this.slpGen = null;
+
+    this.symbols = symbols;
+    this.diagnostics = new ArrayList<Diagnostic>();
+    this.labels = 0;
+    this.temps = 0;
+    this.skippedBodies = 0;
+    this.materializedBodies = 0;
+  }
+
+  // a fresh context with the options of "options", e.g., for one of
+  // the files of a batch, or for a request to the compile daemon
+  public CompilationContext(CompilationContext options, SymbolTable symbols)
+  {
+    this(symbols);
+    this.testLexer = options.testLexer;
+    this.dumpTokens = options.dumpTokens;
+    this.mmapThreshold = options.mmapThreshold;
+    this.swar = options.swar;
+    this.pipeline = options.pipeline;
+
+    this.parallel = options.parallel;
+    this.lazy = options.lazy;
+    this.cache = options.cache;
+    this.cacheLimit = options.cacheLimit;
+    this.cacheStats = options.cacheStats;
+
+    this.train = options.train;
+    this.jobs = options.jobs;
+
+    this.server = options.server;
+    this.client = options.client;
+
+    this.slpAction = options.slpAction;
+    this.slpDiv = options.slpDiv;
+    this.slpKeepasm = options.slpKeepasm;
+    this.slpRegs = options.slpRegs;
+    this.slpOpt = options.slpOpt;
+    this.slpGen = options.slpGen;
+  }
+
+  // a label which is fresh in this compilation
+  public Label newLabel()
+  {
+    return new Label(this.labels++);
+  }
+
+  // the number of a fresh temporary
+  public int newTemp()
+  {
+    return this.temps++;
+  }
+
+  // Record an error. The phases go on after an error, as far as
+  // they can, and leave it to the driver to print the diagnostics
+  // and to decide how to exit. The lexer and the parser may report
+  // from different threads.
+  public synchronized void error(String file, int line, int column,
+      String msg)
+  {
+    this.diagnostics.add(new Diagnostic(file, line, column, msg));
+    return;
+  }
+
+  public synchronized boolean hasErrors()
+  {
+    return !this.diagnostics.isEmpty();
+  }
+
+  // the diagnostics so far, in source order
+  public synchronized List<Diagnostic> diagnostics()
+  {
+    ArrayList<Diagnostic> list = new ArrayList<Diagnostic>(this.diagnostics);
+    Collections.sort(list);
+    return list;
+  }
+}
@@ -1,21 +1,13 @@
 package control;
 
+// The kinds of the options. The options themselves are fields of
+// "CompilationContext", which the command line fills in, so that
+// each compilation has its own, and no two share any.
 public class Control
 {
-  // the lexer
-  public static class ConLexer
-  {
-    public static boolean test = false;
-    public static boolean dump = false;
-  }
-  
   // the straight-line program interpreter
   public static class ConSlp
   {
-    public enum T{NONE, ARGS, INTERP, COMPILE, TEST, DIV};
-    
-    public static T action = T.NONE;
-    public static boolean div = false;
-    public static boolean keepasm = false;
+    public enum T{NONE, ARGS, INTERP, VM, JIT, COMPILE, TEST, DIV};
   }
 }
@@ -0,0 +1,35 @@
+package control;
+
+// An error found in the source, at a line and column of a file.
+// Diagnostics order by their position, so those reported out of
+// order (say, by parallel parsers) can be sorted back.
+public class Diagnostic implements Comparable<Diagnostic>
+{
+  public String file;
+  public int line;
+  public int column;
+  public String message;
+
+  public Diagnostic(String file, int line, int column, String message)
+  {
+    this.file = file;
+    this.line = line;
+    this.column = column;
+    this.message = message;
+  }
+
+  @Override
+  public int compareTo(Diagnostic d)
+  {
+    if (this.line != d.line)
+      return Integer.compare(this.line, d.line);
+    return Integer.compare(this.column, d.column);
+  }
+
+  @Override
+  public String toString()
+  {
+    return this.file + ":" + this.line + ":" + this.column + ": "
+        + this.message;
+  }
+}
@@ -0,0 +1,380 @@
+package lexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import lexer.Token.Kind;
+
+// The generator of the lexer's transition tables. It reads the
+// token specification below, builds an NFA for it (Thompson's
+// construction), turns it into a DFA (subset construction),
+// minimizes the DFA (Moore's partition refinement), and then
+// compresses the input bytes into equivalence classes. Run
+//
+//   java lexer.DfaGen > src/lexer/DfaTables.java
+//
+// after changing the specification.
+public class DfaGen
+{
+  // The MiniJava tokens: a pattern and the kind of token it is
+  // lexed as; "null" for what is skipped. When two patterns match
+  // the same longest input, the first one wins. Keywords are lexed
+  // as TOKEN_ID and told apart by the lexer afterwards.
+  static Object[][] spec = {
+      { "\\+", Kind.TOKEN_ADD },
+      { "&&", Kind.TOKEN_AND },
+      { "=", Kind.TOKEN_ASSIGN },
+      { ",", Kind.TOKEN_COMMER },
+      { "\\.", Kind.TOKEN_DOT },
+      { "{", Kind.TOKEN_LBRACE },
+      { "\\[", Kind.TOKEN_LBRACK },
+      { "\\(", Kind.TOKEN_LPAREN },
+      { "<", Kind.TOKEN_LT },
+      { "!", Kind.TOKEN_NOT },
+      { "}", Kind.TOKEN_RBRACE },
+      { "\\]", Kind.TOKEN_RBRACK },
+      { "\\)", Kind.TOKEN_RPAREN },
+      { ";", Kind.TOKEN_SEMI },
+      { "-", Kind.TOKEN_SUB },
+      { "\\*", Kind.TOKEN_TIMES },
+      { "[A-Za-z_][A-Za-z_0-9]*", Kind.TOKEN_ID },
+      { "[0-9]+", Kind.TOKEN_NUM },
+      { "[ \t\r\n]+", null },
+      { "//[^\n]*", null },
+      { "/\\*([^*]|\\*+[^*/])*\\*+/", null }, };
+
+  // the accept code for skipped input
+  static final int SKIP = -2;
+
+  // ///////////////////////////////////////////////////
+  // NFA
+  static class Node
+  {
+    int id;
+    BitSet on; // the bytes to go to "to" on, if any
+    Node to;
+    ArrayList<Node> eps = new ArrayList<Node>();
+    int rule = -1; // the rule accepted in this node, if any
+  }
+
+  static ArrayList<Node> nodes = new ArrayList<Node>();
+
+  static Node node()
+  {
+    Node n = new Node();
+    n.id = nodes.size();
+    nodes.add(n);
+    return n;
+  }
+
+  // a fragment of the NFA, from "in" to "out"
+  static class Frag
+  {
+    Node in;
+    Node out;
+
+    Frag(Node in, Node out)
+    {
+      this.in = in;
+      this.out = out;
+    }
+  }
+
+  // ///////////////////////////////////////////////////
+  // a recursive descent parser for the patterns:
+  // alt -> seq (| seq)*
+  // seq -> rep*
+  // rep -> atom (* | + | ?)*
+  // atom -> ( alt ) | [ class ] | \c | c
+  static String re;
+  static int p;
+
+  static Frag alt()
+  {
+    Frag f = seq();
+    while (p < re.length() && re.charAt(p) == '|') {
+      p++;
+      Frag g = seq();
+      Node in = node();
+      Node out = node();
+      in.eps.add(f.in);
+      in.eps.add(g.in);
+      f.out.eps.add(out);
+      g.out.eps.add(out);
+      f = new Frag(in, out);
+    }
+    return f;
+  }
+
+  static Frag seq()
+  {
+    Node n = node();
+    Frag f = new Frag(n, n);
+    while (p < re.length() && re.charAt(p) != '|' && re.charAt(p) != ')') {
+      Frag g = rep();
+      f.out.eps.add(g.in);
+      f = new Frag(f.in, g.out);
+    }
+    return f;
+  }
+
+  static Frag rep()
+  {
+    Frag f = atom();
+    while (p < re.length()) {
+      char c = re.charAt(p);
+      if (c != '*' && c != '+' && c != '?')
+        break;
+      p++;
+      Node in = node();
+      Node out = node();
+      in.eps.add(f.in);
+      f.out.eps.add(out);
+      if (c != '+')
+        in.eps.add(out);
+      if (c != '?')
+        f.out.eps.add(f.in);
+      f = new Frag(in, out);
+    }
+    return f;
+  }
+
+  static Frag atom()
+  {
+    char c = re.charAt(p++);
+    BitSet on = new BitSet(256);
+
+    switch (c) {
+    case '(':
+      Frag f = alt();
+      if (re.charAt(p++) != ')')
+        throw new Error("bad pattern: " + re);
+      return f;
+    case '[':
+      boolean negate = re.charAt(p) == '^';
+      if (negate)
+        p++;
+      while (re.charAt(p) != ']') {
+        char lo = re.charAt(p++);
+        if (lo == '\\')
+          lo = re.charAt(p++);
+        char hi = lo;
+        if (re.charAt(p) == '-' && re.charAt(p + 1) != ']') {
+          hi = re.charAt(p + 1);
+          p += 2;
+        }
+        on.set(lo, hi + 1);
+      }
+      p++;
+      if (negate)
+        on.flip(0, 256);
+      break;
+    case '\\':
+      on.set(re.charAt(p++));
+      break;
+    default:
+      on.set(c);
+      break;
+    }
+    Node in = node();
+    Node out = node();
+    in.on = on;
+    in.to = out;
+    return new Frag(in, out);
+  }
+
+  // ///////////////////////////////////////////////////
+  // NFA to DFA
+  static BitSet closure(BitSet set)
+  {
+    BitSet result = (BitSet) set.clone();
+    int[] work = new int[nodes.size()];
+    int top = 0;
+
+    for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1))
+      work[top++] = i;
+    while (top > 0) {
+      Node n = nodes.get(work[--top]);
+      for (Node m : n.eps)
+        if (!result.get(m.id)) {
+          result.set(m.id);
+          work[top++] = m.id;
+        }
+    }
+    return result;
+  }
+
+  public static void main(String[] args)
+  {
+    // the NFA: a start node with an epsilon edge to each rule
+    Node start = node();
+    for (int r = 0; r < spec.length; r++) {
+      re = (String) spec[r][0];
+      p = 0;
+      Frag f = alt();
+      if (p != re.length())
+        throw new Error("bad pattern: " + re);
+      f.out.rule = r;
+      start.eps.add(f.in);
+    }
+
+    // subset construction. DFA state 0 is the dead state.
+    ArrayList<BitSet> states = new ArrayList<BitSet>();
+    HashMap<BitSet, Integer> ids = new HashMap<BitSet, Integer>();
+    ArrayList<int[]> trans = new ArrayList<int[]>();
+    states.add(new BitSet());
+    ids.put(new BitSet(), 0);
+    trans.add(new int[256]);
+    BitSet s0 = new BitSet();
+    s0.set(start.id);
+    s0 = closure(s0);
+    states.add(s0);
+    ids.put(s0, 1);
+    for (int d = 1; d < states.size(); d++) {
+      BitSet set = states.get(d);
+      int[] row = new int[256];
+      for (int b = 0; b < 256; b++) {
+        BitSet next = new BitSet();
+        for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+          Node n = nodes.get(i);
+          if (n.on != null && n.on.get(b))
+            next.set(n.to.id);
+        }
+        next = closure(next);
+        Integer id = ids.get(next);
+        if (id == null) {
+          id = states.size();
+          states.add(next);
+          ids.put(next, id);
+        }
+        row[b] = id;
+      }
+      trans.add(row);
+    }
+    int n = states.size();
+    int[] accept = new int[n];
+    for (int d = 0; d < n; d++) {
+      int rule = Integer.MAX_VALUE;
+      BitSet set = states.get(d);
+      for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1))
+        if (nodes.get(i).rule >= 0 && nodes.get(i).rule < rule)
+          rule = nodes.get(i).rule;
+      if (rule == Integer.MAX_VALUE)
+        accept[d] = -1;
+      else if (spec[rule][1] == null)
+        accept[d] = SKIP;
+      else
+        accept[d] = ((Kind) spec[rule][1]).ordinal();
+    }
+
+    // minimization: start from the partition by accept code (the
+    // dead state and the start state each on their own, to keep
+    // their numbers), and split blocks until all states in a block
+    // go to the same blocks on every byte.
+    int[] block = new int[n];
+    HashMap<String, Integer> keys = new HashMap<String, Integer>();
+    for (int d = 0; d < n; d++) {
+      String key = d <= 1 ? "#" + d : "" + accept[d];
+      Integer b = keys.get(key);
+      if (b == null) {
+        b = keys.size();
+        keys.put(key, b);
+      }
+      block[d] = b;
+    }
+    int blocks = keys.size();
+    for (;;) {
+      keys.clear();
+      int[] next = new int[n];
+      for (int d = 0; d < n; d++) {
+        StringBuilder key = new StringBuilder();
+        key.append(block[d]);
+        for (int b = 0; b < 256; b++)
+          key.append(',').append(block[trans.get(d)[b]]);
+        Integer x = keys.get(key.toString());
+        if (x == null) {
+          x = keys.size();
+          keys.put(key.toString(), x);
+        }
+        next[d] = x;
+      }
+      block = next;
+      if (keys.size() == blocks)
+        break;
+      blocks = keys.size();
+    }
+
+    // renumber the blocks so the dead state is 0 and the start
+    // state is 1
+    int[] number = new int[blocks];
+    Arrays.fill(number, -1);
+    number[block[0]] = 0;
+    number[block[1]] = 1;
+    int m = 2;
+    for (int d = 2; d < n; d++)
+      if (number[block[d]] < 0)
+        number[block[d]] = m++;
+    int[][] mtrans = new int[m][];
+    int[] maccept = new int[m];
+    for (int d = 0; d < n; d++) {
+      int s = number[block[d]];
+      if (mtrans[s] != null)
+        continue;
+      mtrans[s] = new int[256];
+      for (int b = 0; b < 256; b++)
+        mtrans[s][b] = number[block[trans.get(d)[b]]];
+      maccept[s] = accept[d];
+    }
+
+    // bytes with the same column in the table form a class
+    int[] cls = new int[256];
+    ArrayList<Integer> reps = new ArrayList<Integer>();
+    HashMap<String, Integer> cols = new HashMap<String, Integer>();
+    for (int b = 0; b < 256; b++) {
+      StringBuilder key = new StringBuilder();
+      for (int s = 0; s < m; s++)
+        key.append(mtrans[s][b]).append(',');
+      Integer c = cols.get(key.toString());
+      if (c == null) {
+        c = reps.size();
+        cols.put(key.toString(), c);
+        reps.add(b);
+      }
+      cls[b] = c;
+    }
+    int k = reps.size();
+
+    // output
+    StringBuilder out = new StringBuilder();
+    out.append("package lexer;\n\n");
+    out.append("// Automatically generated by lexer.DfaGen, do NOT edit.\n");
+    out.append("// " + m + " states, " + k + " byte classes.\n");
+    out.append("class DfaTables\n{\n");
+    out.append("  static final int SKIP = " + SKIP + ";\n");
+    out.append("  static final int CLASSES = " + k + ";\n\n");
+    out.append("  // the class of each input byte\n");
+    out.append("  static final byte[] CLASS = {");
+    for (int b = 0; b < 256; b++)
+      out.append(b % 16 == 0 ? "\n      " : " ").append(cls[b]).append(',');
+    out.append(" };\n\n");
+    out.append("  // NEXT[state * CLASSES + class]; state 0 is dead, 1 is the start\n");
+    out.append("  static final byte[] NEXT = {");
+    for (int s = 0; s < m; s++) {
+      out.append("\n     ");
+      for (int c = 0; c < k; c++)
+        out.append(' ').append(mtrans[s][reps.get(c)]).append(',');
+    }
+    out.append(" };\n\n");
+    out.append("  // the kind ordinal accepted in each state, SKIP, or -1\n");
+    out.append("  static final byte[] ACCEPT = {");
+    for (int s = 0; s < m; s++)
+      out.append(s % 16 == 0 ? "\n      " : " ").append(maccept[s]).append(',');
+    out.append(" };\n");
+    out.append("}\n");
+    if (m > 127)
+      throw new Error("too many states for a byte table: " + m);
+    System.out.print(out);
+  }
+}
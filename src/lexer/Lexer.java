@@ -1,70 +1,560 @@
 package lexer;
 
-import static control.Control.ConLexer.dump;
-
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 import lexer.Token.Kind;
-import util.Todo;
+import util.SymbolTable;
+import control.CompilationContext;
 
-public class Lexer
+public class Lexer implements Closeable
 {
   String fname; // the input file name to be compiled
-  InputStream fstream; // input stream for the above file
+  InputStream fstream; // input stream for the above file, or null
+                       // if the file is memory-mapped
+
+  // The source is scanned out of a byte window which is refilled
+  // in large blocks from "fstream", so that characters are fetched
+  // by a plain cursor instead of a (synchronized) "read()" call
+  // per byte. For a memory-mapped file, the window is the whole
+  // mapping and is never refilled. The window of a stream is also
+  // kept as a plain array, read without the bounds and order checks
+  // of the buffer on the paths taken per byte.
+  static final int BUFSIZE = 1 << 16;
+  ByteBuffer buf; // the window
+  byte[] bytes; // the array of "buf" for a stream, null for a mapping
+  int pos; // cursor: the next character to scan
+  int limit; // number of valid bytes in "buf"
+  int mark; // start of the lexeme being scanned
+  int lineNum; // current line number
+  int lineStart; // position of the first character of the current line
+  int tokLine; // line of the token last scanned
+  int tokCol; // column of the token last scanned
+  int tokSym; // symbol id of the lexeme of the token last scanned
 
-  public Lexer(String fname, InputStream fstream)
+  CompilationContext ctx;
+  SymbolTable symbols; // where identifiers and numbers are interned
+  final boolean swar; // options of "ctx", read per token
+  final boolean dump;
+
+  public Lexer(String fname, InputStream fstream, CompilationContext ctx)
   {
     this.fname = fname;
     this.fstream = fstream;
+    this.ctx = ctx;
+    this.symbols = ctx.symbols;
+    this.swar = ctx.swar;
+    this.dump = ctx.dumpTokens;
+    this.bytes = new byte[BUFSIZE];
+    this.buf = ByteBuffer.wrap(this.bytes);
+    this.pos = 0;
+    this.limit = 0;
+    this.mark = 0;
+    this.lineNum = 1;
+    this.lineStart = 0;
+  }
+
+  // Scan the file through a read-only mapping instead of copying
+  // it onto the heap. Identifier and number lexemes stay slices of
+  // the mapping until someone asks for their text (see
+  // "Token.getLexeme()"), so the heap footprint does not grow with
+  // the size of the file.
+  public Lexer(Path path, CompilationContext ctx) throws IOException
+  {
+    this.fname = path.toString();
+    this.fstream = null;
+    this.bytes = null;
+    this.ctx = ctx;
+    this.symbols = ctx.symbols;
+    this.swar = ctx.swar;
+    this.dump = ctx.dumpTokens;
+    try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+      this.buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+    }
+    this.pos = 0;
+    this.limit = this.buf.limit();
+    this.mark = 0;
+    this.lineNum = 1;
+    this.lineStart = 0;
+  }
+
+  public CompilationContext context()
+  {
+    return this.ctx;
+  }
+
+  // close the input stream, if any; a mapping goes away with the
+  // buffer
+  @Override
+  public void close() throws IOException
+  {
+    if (this.fstream != null)
+      this.fstream.close();
+    return;
+  }
+
+  // Refill the window from the input stream. The bytes of the
+  // lexeme being scanned (from "mark" on) are moved to the front
+  // of the window first, so a lexeme never straddles two windows.
+  // Return false when reaching the end of the input stream.
+  private boolean fill() throws IOException
+  {
+    if (this.fstream == null)
+      return false;
+
+    byte[] a = this.bytes;
+    int keep = this.limit - this.mark;
+
+    if (keep > 0)
+      System.arraycopy(a, this.mark, a, 0, keep);
+    this.pos -= this.mark;
+    this.lineStart -= this.mark;
+    this.mark = 0;
+    this.limit = keep;
+    // a lexeme as long as the whole window
+    if (this.limit == a.length) {
+      a = java.util.Arrays.copyOf(a, 2 * a.length);
+      this.bytes = a;
+      this.buf = ByteBuffer.wrap(a);
+    }
+
+    int n = this.fstream.read(a, this.limit, a.length - this.limit);
+    if (n <= 0)
+      return false;
+    this.limit += n;
+    return true;
+  }
+
+  // look at the current character without consuming it,
+  // -1 for the end of the input stream.
+  private int peek() throws IOException
+  {
+    if (this.pos >= this.limit && !fill())
+      return -1;
+    return at(this.pos) & 0xff;
+  }
+
+  // the byte at "i" in the window
+  private byte at(int i)
+  {
+    byte[] a = this.bytes;
+    return a != null ? a[i] : this.buf.get(i);
+  }
+
+  static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(
+      long[].class, ByteOrder.BIG_ENDIAN);
+
+  // the 8 bytes from "i" on in the window, the first one the most
+  // significant
+  private long longAt(int i)
+  {
+    byte[] a = this.bytes;
+    return a != null ? (long) LONGS.get(a, i) : this.buf.getLong(i);
+  }
+
+  // report a lexical error at the current line and at the
+  // column of "mark"
+  private void error(String msg)
+  {
+    this.ctx.error(this.fname, this.lineNum, this.mark - this.lineStart + 1,
+        "lexical error: " + msg);
+    return;
+  }
+
+  public String fileName()
+  {
+    return this.fname;
+  }
+
+  // count the lines in the skipped input between "mark" and the
+  // cursor.
+  private void countLines()
+  {
+    for (int i = this.mark; i < this.pos; i++)
+      if (at(i) == '\n') {
+        this.lineNum++;
+        this.lineStart = i + 1;
+      }
+    return;
+  }
+
+  // ///////////////////////////////////////////////////////
+  // Skipping blanks and comments 8 bytes at a time: each load
+  // brings 8 bytes into a long, and the bytes of interest are
+  // found by the usual bit tricks (SWAR). The window is big-endian,
+  // so the first byte of a load is its most significant one.
+  static final long ONES = 0x0101010101010101L;
+  static final long HIGHS = 0x8080808080808080L;
+  static final long LOWS = 0x7f7f7f7f7f7f7f7fL;
+
+  // 0x80 in every byte of "x" that is "b", and 0 in the others
+  private static long match(long x, int b)
+  {
+    long y = x ^ (b * ONES);
+    return ~(((y & LOWS) + LOWS) | y | LOWS);
+  }
+
+  // index of the first byte marked in a non-zero "mask"
+  private static int first(long mask)
+  {
+    return Long.numberOfLeadingZeros(mask) >>> 3;
+  }
+
+  // a mask of the "i" first bytes, 0 <= i < 8
+  private static long before(int i)
+  {
+    return i == 0 ? 0 : -1L << (64 - 8 * i);
+  }
+
+  // count the newlines marked in "nl", a mask of the 8 bytes
+  // starting at "base".
+  private void lines(long nl, int base)
+  {
+    if (nl != 0) {
+      this.lineNum += Long.bitCount(nl);
+      this.lineStart = base + 8 - (Long.numberOfTrailingZeros(nl) >>> 3);
+    }
+    return;
+  }
+
+  // whether or not there are "n" bytes from the cursor on in
+  // the window. Nothing before the cursor is kept on a refill.
+  private boolean available(int n) throws IOException
+  {
+    this.mark = this.pos;
+    while (this.pos + n > this.limit)
+      if (!fill())
+        return false;
+    return true;
+  }
+
+  // Skip blanks and comments in blocks of 8 bytes, stopping at the
+  // first byte that may start a token. Close to the end of the
+  // input, it returns at a token boundary and leaves the rest to
+  // the DFA, or finishes a comment a byte at a time.
+  private void skipFast() throws IOException
+  {
+    for (;;) {
+      if (!available(8))
+        return;
+
+      long x = longAt(this.pos);
+      long nl = match(x, '\n');
+      long blank = nl | match(x, ' ') | match(x, '\t') | match(x, '\r');
+      if (blank == HIGHS) {
+        lines(nl, this.pos);
+        this.pos += 8;
+        continue;
+      }
+      int i = first(~blank & HIGHS);
+      if (i > 0) {
+        lines(nl & before(i), this.pos);
+        this.pos += i;
+        continue;
+      }
+
+      // a non-blank at the cursor, and 8 bytes available
+      if (at(this.pos) != '/')
+        return;
+      int c = at(this.pos + 1);
+      if ('/' == c) {
+        this.pos += 2;
+        skipLineComment();
+      } else if ('*' == c) {
+        this.pos += 2;
+        skipBlockComment();
+      } else
+        return;
+    }
+  }
+
+  // skip to the newline ending a // comment
+  private void skipLineComment() throws IOException
+  {
+    while (available(8)) {
+      long nl = match(longAt(this.pos), '\n');
+      if (nl != 0) {
+        this.pos += first(nl);
+        return;
+      }
+      this.pos += 8;
+    }
+    int c = peek();
+    while (c != -1 && c != '\n') {
+      this.mark = ++this.pos;
+      c = peek();
+    }
+    return;
+  }
+
+  // skip past the "*/" ending a /* comment
+  private void skipBlockComment() throws IOException
+  {
+    for (;;) {
+      if (available(8)) {
+        long x = longAt(this.pos);
+        long nl = match(x, '\n');
+        long star = match(x, '*');
+        if (star == 0) {
+          lines(nl, this.pos);
+          this.pos += 8;
+          continue;
+        }
+        int i = first(star);
+        lines(nl & before(i), this.pos);
+        this.pos += i;
+      }
+
+      // one byte at a time, from a '*' or close to the end
+      this.mark = this.pos;
+      int c = peek();
+      if (-1 == c) {
+        // the rest of the input is the comment
+        error("unterminated comment");
+        return;
+      }
+      this.mark = ++this.pos;
+      if ('\n' == c) {
+        this.lineNum++;
+        this.lineStart = this.pos;
+      } else if ('*' == c && '/' == peek()) {
+        this.pos++;
+        return;
+      }
+    }
+  }
+
+  // Scan the next token and return its kind, without allocating
+  // anything. The token starts at line "tokLine", column "tokCol",
+  // and its lexeme, if any, lies between "mark" and the cursor.
+  // Return TOKEN_EOF when reaching the end of the input stream.
+  //
+  // The scanner runs the DFA in "DfaTables.java" (generated by
+  // "DfaGen.java" from the token specification) with one table
+  // lookup per byte, and returns the longest match.
+  private Kind scan() throws IOException
+  {
+    for (;;) {
+      if (this.swar)
+        skipFast();
+      this.mark = this.pos;
+      this.tokLine = this.lineNum;
+      this.tokCol = this.pos - this.lineStart + 1;
+
+      int c = peek();
+      if (-1 == c)
+        return Kind.TOKEN_EOF;
+
+      int state = 1;
+      int accept = -1;
+      int len = 0; // length of the longest match
+      while (c != -1) {
+        state = DfaTables.NEXT[state * DfaTables.CLASSES
+            + DfaTables.CLASS[c]];
+        if (0 == state)
+          break;
+        this.pos++;
+        if (DfaTables.ACCEPT[state] != -1) {
+          accept = DfaTables.ACCEPT[state];
+          len = this.pos - this.mark;
+        }
+        c = peek();
+      }
+
+      if (-1 == accept) {
+        if (this.pos - this.mark >= 2 && at(this.mark) == '/'
+            && at(this.mark + 1) == '*') {
+          // the rest of the input is the comment
+          error("unterminated comment");
+          this.mark = this.pos;
+          return Kind.TOKEN_EOF;
+        }
+        // skip the character, and go on
+        error("illegal character: '" + (char) at(this.mark) + "'");
+        this.pos = this.mark + 1;
+        continue;
+      }
+      this.pos = this.mark + len;
+      if (DfaTables.SKIP == accept) {
+        countLines();
+        continue;
+      }
+
+      Kind kind = TokenBuffer.kinds[accept];
+      if (kind == Kind.TOKEN_ID) {
+        Kind k = keyword();
+        if (k != null)
+          return k;
+      }
+      return kind;
+    }
   }
 
   // When called, return the next token (refer to the code "Token.java")
   // from the input stream.
   // Return TOKEN_EOF when reaching the end of the input stream.
-  private Token nextTokenInternal() throws Exception
-  {
-    int c = this.fstream.read();
-    if (-1 == c)
-      // The value for "lineNum" is now "null",
-      // you should modify this to an appropriate
-      // line number for the "EOF" token.
-      return new Token(Kind.TOKEN_EOF, null);
-
-    // skip all kinds of "blanks"
-    while (' ' == c || '\t' == c || '\n' == c) {
-      c = this.fstream.read();
-    }
-    if (-1 == c)
-      return new Token(Kind.TOKEN_EOF, null);
+  private Token nextTokenInternal() throws IOException
+  {
+    Kind kind = scan();
 
-    switch (c) {
-    case '+':
-      return new Token(Kind.TOKEN_ADD, null);
+    if (kind == Kind.TOKEN_ID || kind == Kind.TOKEN_NUM)
+      return lexeme(kind);
+    return new Token(kind, this.tokLine);
+  }
+
+  // whether or not the identifier between "mark" and the cursor,
+  // already known to be as long as "kw" and to start with the same
+  // character, is the keyword "kw".
+  private boolean is(String kw)
+  {
+    for (int i = 1; i < kw.length(); i++)
+      if (at(this.mark + i) != kw.charAt(i))
+        return false;
+    return true;
+  }
+
+  // Recognize a keyword by a switch on the length and the first
+  // character of the identifier between "mark" and the cursor,
+  // and then a compare in place, so no string is built for it.
+  // Return null if it is not a keyword.
+  private Kind keyword()
+  {
+    switch (this.pos - this.mark) {
+    case 2:
+      if (at(this.mark) == 'i' && is("if"))
+        return Kind.TOKEN_IF;
+      return null;
+    case 3:
+      switch (at(this.mark)) {
+      case 'i':
+        return is("int") ? Kind.TOKEN_INT : null;
+      case 'n':
+        return is("new") ? Kind.TOKEN_NEW : null;
+      case 'o':
+        return is("out") ? Kind.TOKEN_OUT : null;
+      default:
+        return null;
+      }
+    case 4:
+      switch (at(this.mark)) {
+      case 'e':
+        return is("else") ? Kind.TOKEN_ELSE : null;
+      case 'm':
+        return is("main") ? Kind.TOKEN_MAIN : null;
+      case 't':
+        if (is("this"))
+          return Kind.TOKEN_THIS;
+        return is("true") ? Kind.TOKEN_TRUE : null;
+      case 'v':
+        return is("void") ? Kind.TOKEN_VOID : null;
+      default:
+        return null;
+      }
+    case 5:
+      switch (at(this.mark)) {
+      case 'c':
+        return is("class") ? Kind.TOKEN_CLASS : null;
+      case 'f':
+        return is("false") ? Kind.TOKEN_FALSE : null;
+      case 'w':
+        return is("while") ? Kind.TOKEN_WHILE : null;
+      default:
+        return null;
+      }
+    case 6:
+      switch (at(this.mark)) {
+      case 'l':
+        return is("length") ? Kind.TOKEN_LENGTH : null;
+      case 'p':
+        return is("public") ? Kind.TOKEN_PUBLIC : null;
+      case 'r':
+        return is("return") ? Kind.TOKEN_RETURN : null;
+      case 's':
+        return is("static") ? Kind.TOKEN_STATIC : null;
+      case 'S':
+        if (is("String"))
+          return Kind.TOKEN_STRING;
+        return is("System") ? Kind.TOKEN_SYSTEM : null;
+      default:
+        return null;
+      }
+    case 7:
+      switch (at(this.mark)) {
+      case 'b':
+        return is("boolean") ? Kind.TOKEN_BOOLEAN : null;
+      case 'e':
+        return is("extends") ? Kind.TOKEN_EXTENDS : null;
+      case 'p':
+        return is("println") ? Kind.TOKEN_PRINTLN : null;
+      default:
+        return null;
+      }
     default:
-      // Lab 1, exercise 2: supply missing code to
-      // lex other kinds of tokens.
-      // Hint: think carefully about the basic
-      // data structure and algorithms. The code
-      // is not that much and may be less than 50 lines. If you
-      // find you are writing a lot of code, you
-      // are on the wrong way.
-      new Todo();
       return null;
     }
   }
 
+  // the text between "mark" and the cursor.
+  private String text()
+  {
+    return Token.decode(this.buf, this.mark, this.pos - this.mark);
+  }
+
+  // a token whose lexeme is the text between "mark" and the cursor.
+  // A mapped window is never overwritten, so the lexeme can be left
+  // as a slice of it.
+  private Token lexeme(Kind kind)
+  {
+    if (this.fstream == null)
+      return new Token(kind, this.tokLine, this.buf, this.mark, this.pos
+          - this.mark);
+    return new Token(kind, this.tokLine, text());
+  }
+
   public Token nextToken()
   {
     Token t = null;
 
     try {
       t = this.nextTokenInternal();
-    } catch (Exception e) {
-      e.printStackTrace();
-      System.exit(1);
+    } catch (IOException e) {
+      error(e.toString());
+      t = new Token(Kind.TOKEN_EOF, this.lineNum);
     }
-    if (dump)
+    if (this.dump)
       System.out.println(t.toString());
     return t;
   }
+
+  // Scan the next token for the packed token stream, so no Token
+  // object is created for it: return its kind, with its position
+  // in "tokLine" and "tokCol" and the symbol id of its lexeme, if
+  // any, in "tokSym".
+  Kind nextPacked()
+  {
+    Kind kind = null;
+
+    try {
+      kind = scan();
+      this.tokSym = -1;
+      if (kind == Kind.TOKEN_ID || kind == Kind.TOKEN_NUM)
+        this.tokSym = this.symbols.intern(this.buf, this.mark, this.pos
+            - this.mark);
+      if (this.dump)
+        System.out.println(new Token(kind, this.tokLine,
+            this.tokSym < 0 ? null : this.symbols.name(this.tokSym)));
+    } catch (IOException e) {
+      error(e.toString());
+      kind = Kind.TOKEN_EOF;
+    }
+    return kind;
+  }
 }
@@ -1,5 +1,7 @@
 package lexer;
 
+import java.nio.ByteBuffer;
+
 public class Token
 {
   // Lab 1, exercise 1: read the MiniJava specification
@@ -60,6 +62,12 @@ public class Token
   public String lexeme; // extra lexeme for this token, if any
   public Integer lineNum; // on which line of the source file this token appears
 
+  // a lexeme not yet turned into a string: a slice of the
+  // (memory-mapped) source
+  private ByteBuffer src;
+  private int offset;
+  private int length;
+
   // Some tokens don't come with lexeme but 
   // others do.
   public Token(Kind kind, Integer lineNum)
@@ -74,6 +82,38 @@ public class Token
     this.lexeme = lexeme;
   }
 
+  public Token(Kind kind, Integer lineNum, ByteBuffer src, int offset,
+      int length)
+  {
+    this(kind, lineNum);
+    this.src = src;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  // the lexeme of this token, decoded from its source slice
+  // the first time it is asked for.
+  public String getLexeme()
+  {
+    if (this.lexeme == null && this.src != null) {
+      this.lexeme = decode(this.src, this.offset, this.length);
+      this.src = null;
+    }
+    return this.lexeme;
+  }
+
+  static String decode(ByteBuffer src, int offset, int length)
+  {
+    if (src.hasArray())
+      return new String(src.array(), offset, length,
+          java.nio.charset.StandardCharsets.ISO_8859_1);
+
+    byte[] a = new byte[length];
+    for (int i = 0; i < length; i++)
+      a[i] = src.get(offset + i);
+    return new String(a, java.nio.charset.StandardCharsets.ISO_8859_1);
+  }
+
   @Override
   public String toString()
   {
@@ -83,7 +123,8 @@ public class Token
     if (this.lineNum == null)
       new util.Todo();
 
-    s = ": " + ((this.lexeme == null) ? "<NONE>" : this.lexeme) + " : at line "
+    String lexeme = getLexeme();
+    s = ": " + ((lexeme == null) ? "<NONE>" : lexeme) + " : at line "
         + this.lineNum.toString();
     return this.kind.toString() + s;
   }
@@ -0,0 +1,226 @@
+package lexer;
+
+import java.util.Arrays;
+
+import lexer.Token.Kind;
+import util.SymbolTable;
+
+// The token stream in a packed (struct-of-arrays) form: token "i"
+// is described by a slot of a few parallel int arrays, so lexing a
+// large file creates no per-token objects. Tokens are pulled on
+// demand from the lexer, or from the ring a lexer thread fills (see
+// "TokenRing.java"), and any token ahead of the parser can be
+// looked at by its index.
+//
+// The buffer is a window sliding over the stream: a reader marks
+// the tokens it may come back to (see "mark()"), and the tokens
+// before the lowest mark are dropped when the arrays fill up, so
+// the window is as large as the longest stretch a mark keeps, not
+// as the file. With no mark at all, nothing is ever dropped, as
+// when the whole stream is wanted (see "fillAll()"). The lexemes
+// live on in the symbol table, which holds each distinct name or
+// number once, so it grows with the vocabulary of the input rather
+// than with its length.
+public class TokenBuffer
+{
+  static final Kind[] kinds = Kind.values();
+  static final int BATCH = 256; // tokens lexed per refill
+
+  Lexer lexer; // where tokens come from, or null if from "ring"
+  TokenRing ring;
+  int[] kind; // kind ordinal
+  int[] line; // line number
+  int[] col; // column number
+  int[] lexeme; // symbol id of the lexeme, or -1 for none
+  SymbolTable symbols; // where the lexemes are interned
+  int base; // index of the token in slot 0 of the arrays
+  int size; // number of tokens so far, dropped ones included
+  boolean eof; // whether or not TOKEN_EOF is in the buffer
+  int[] marks; // the marked tokens, in no order
+  int nmarks;
+
+  public TokenBuffer(Lexer lexer)
+  {
+    this(lexer, null);
+  }
+
+  public TokenBuffer(TokenRing ring)
+  {
+    this(null, ring);
+  }
+
+  private TokenBuffer(Lexer lexer, TokenRing ring)
+  {
+    this.lexer = lexer;
+    this.ring = ring;
+    this.kind = new int[1024];
+    this.line = new int[1024];
+    this.col = new int[1024];
+    this.lexeme = new int[1024];
+    this.symbols = (lexer != null) ? lexer.symbols : ring.lexer.symbols;
+    this.base = 0;
+    this.size = 0;
+    this.eof = false;
+    this.marks = new int[4];
+    this.nmarks = 0;
+  }
+
+  void add(Kind k, int l, int c, int sym)
+  {
+    if (this.size - this.base == this.kind.length)
+      makeRoom();
+    int i = this.size - this.base;
+    this.kind[i] = k.ordinal();
+    this.line[i] = l;
+    this.col[i] = c;
+    this.lexeme[i] = sym;
+    this.size++;
+    if (k == Kind.TOKEN_EOF)
+      this.eof = true;
+    return;
+  }
+
+  // Make room for one more token in the full arrays: drop the
+  // tokens before the lowest mark if that frees half of them, or
+  // else grow the arrays.
+  private void makeRoom()
+  {
+    int n = this.size - this.base;
+    int low = this.size;
+
+    if (this.nmarks == 0)
+      low = this.base;
+    for (int m = 0; m < this.nmarks; m++)
+      low = Math.min(low, this.marks[m]);
+    int drop = low - this.base;
+    if (drop >= n / 2) {
+      System.arraycopy(this.kind, drop, this.kind, 0, n - drop);
+      System.arraycopy(this.line, drop, this.line, 0, n - drop);
+      System.arraycopy(this.col, drop, this.col, 0, n - drop);
+      System.arraycopy(this.lexeme, drop, this.lexeme, 0, n - drop);
+      this.base = low;
+      return;
+    }
+    this.kind = Arrays.copyOf(this.kind, 2 * n);
+    this.line = Arrays.copyOf(this.line, 2 * n);
+    this.col = Arrays.copyOf(this.col, 2 * n);
+    this.lexeme = Arrays.copyOf(this.lexeme, 2 * n);
+    return;
+  }
+
+  // Keep token "i", and all those after it, till "release(i)". A
+  // token may be marked more than once, and is kept till each mark
+  // is released.
+  public void mark(int i)
+  {
+    if (i < this.base)
+      new util.Bug();
+    if (this.nmarks == this.marks.length)
+      this.marks = Arrays.copyOf(this.marks, 2 * this.nmarks);
+    this.marks[this.nmarks++] = i;
+    return;
+  }
+
+  public void release(int i)
+  {
+    for (int m = this.nmarks - 1; m >= 0; m--)
+      if (this.marks[m] == i) {
+        this.marks[m] = this.marks[--this.nmarks];
+        return;
+      }
+    new util.Bug();
+    return;
+  }
+
+  // make sure token "i" is in the buffer, and return its slot in
+  // the arrays. Indices past the end of the input are clamped to
+  // the TOKEN_EOF token; one before the window is a bug of the
+  // reader, which did not mark it.
+  private int fetch(int i)
+  {
+    if (i < this.size) {
+      if (i < this.base)
+        new util.Bug();
+      return i - this.base;
+    }
+    while (!this.eof && this.size <= i) {
+      if (this.ring != null) {
+        this.ring.drain(this);
+        continue;
+      }
+      for (int n = 0; n < BATCH && !this.eof; n++) {
+        Kind k = this.lexer.nextPacked();
+        add(k, this.lexer.tokLine, this.lexer.tokCol, this.lexer.tokSym);
+      }
+    }
+    return (i < this.size ? i : this.size - 1) - this.base;
+  }
+
+  // tell the lexer thread, if any, that no more tokens will be
+  // asked for, and wait for it to stop
+  public void cancel()
+  {
+    if (this.ring != null)
+      this.ring.cancel();
+    return;
+  }
+
+  public SymbolTable symbols()
+  {
+    return this.symbols;
+  }
+
+  public int size()
+  {
+    return this.size;
+  }
+
+  // lex the rest of the input into the buffer and return the
+  // number of tokens, TOKEN_EOF included. A full buffer is never
+  // written again, so it can be read by several threads at once.
+  // The tokens from the lowest mark on are all kept, none of them
+  // dropped.
+  public int fillAll()
+  {
+    fetch(Integer.MAX_VALUE);
+    return this.size;
+  }
+
+  public Kind kind(int i)
+  {
+    // fetch() may grow the arrays, so call it before reading them
+    i = fetch(i);
+    return kinds[this.kind[i]];
+  }
+
+  public int line(int i)
+  {
+    i = fetch(i);
+    return this.line[i];
+  }
+
+  public int column(int i)
+  {
+    i = fetch(i);
+    return this.col[i];
+  }
+
+  // the symbol id of the lexeme of token "i", -1 if it has none
+  public int symbol(int i)
+  {
+    i = fetch(i);
+    return this.lexeme[i];
+  }
+
+  public String lexeme(int i)
+  {
+    int sym = symbol(i);
+    return sym < 0 ? null : this.symbols.name(sym);
+  }
+
+  // a Token view of token "i", e.g., for dumping
+  public Token token(int i)
+  {
+    return new Token(kind(i), line(i), lexeme(i));
+  }
+}
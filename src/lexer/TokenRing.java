@@ -0,0 +1,164 @@
+package lexer;
+
+import lexer.Token.Kind;
+
+// A single-producer/single-consumer ring of packed tokens, which
+// lets the lexer run on its own thread ahead of the parser. The
+// lexer thread is the only writer of "tail" and the parser thread
+// (through its TokenBuffer) the only writer of "head", so no lock
+// is needed: each side reads the other's index through a volatile
+// field. The lexer publishes tokens in batches to keep those
+// reads and writes rare, and waits when the ring is full, so the
+// tokens in flight between the threads never take more than the
+// ring's capacity (those the parser has taken are kept, or not, by
+// its TokenBuffer).
+//
+// Should the lexer fail, what it throws is kept, and thrown again
+// on the parser thread once the tokens before it have been taken.
+// A parser which stops before the end of the input cancels the
+// ring, so the lexer thread does not wait forever for room in it.
+//
+// Identifiers are interned on the lexer thread. The names of the
+// tokens a consumer has seen are in the symbol table by the time
+// they are published, so reading them from the parser thread is
+// safe; the symbol table itself is not otherwise thread-safe.
+public class TokenRing implements Runnable
+{
+  static final int CAPACITY = 1 << 14; // a power of 2
+  static final int MASK = CAPACITY - 1;
+  static final int BATCH = 256; // tokens per publication
+
+  Lexer lexer;
+  final int[] kind = new int[CAPACITY];
+  final int[] line = new int[CAPACITY];
+  final int[] col = new int[CAPACITY];
+  final int[] sym = new int[CAPACITY];
+  volatile long head; // next token to be taken by the parser
+  volatile long tail; // next token to be written by the lexer
+  volatile Throwable failure; // what the lexer threw, if it did
+  volatile boolean cancelled; // the parser wants no more tokens
+  Thread thread;
+
+  public TokenRing(Lexer lexer)
+  {
+    this.lexer = lexer;
+    this.head = 0;
+    this.tail = 0;
+    this.failure = null;
+    this.cancelled = false;
+  }
+
+  // start lexing on a thread of its own
+  public void start()
+  {
+    this.thread = new Thread(this, "lexer");
+    this.thread.setDaemon(true);
+    this.thread.start();
+    return;
+  }
+
+  // Stop the lexer thread, and wait for it to stop, so the lexer can
+  // be closed. It stops at its next publication, if it has not
+  // stopped already at the end of the input.
+  public void cancel()
+  {
+    this.cancelled = true;
+    if (this.thread == null)
+      return;
+    boolean interrupted = false;
+    for (;;) {
+      try {
+        this.thread.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+    return;
+  }
+
+  // spin for a while, then give the processor up
+  private static void pause(int round)
+  {
+    if (round < 64)
+      Thread.onSpinWait();
+    else
+      Thread.yield();
+    return;
+  }
+
+  // the lexer thread
+  @Override
+  public void run()
+  {
+    long t = 0;
+    long h = 0; // a cached copy of "head"
+    Kind k;
+
+    try {
+      do {
+        if (t - h == CAPACITY) {
+          // full: publish what we have, and wait for the parser
+          this.tail = t;
+          for (int round = 0; (h = this.head) + CAPACITY == t; round++) {
+            if (this.cancelled)
+              return;
+            pause(round);
+          }
+        }
+        k = this.lexer.nextPacked();
+        int i = (int) t & MASK;
+        this.kind[i] = k.ordinal();
+        this.line[i] = this.lexer.tokLine;
+        this.col[i] = this.lexer.tokCol;
+        this.sym[i] = this.lexer.tokSym;
+        t++;
+        if ((t & (BATCH - 1)) == 0 || k == Kind.TOKEN_EOF) {
+          this.tail = t;
+          if (this.cancelled)
+            return;
+        }
+      } while (k != Kind.TOKEN_EOF);
+    } catch (Throwable e) {
+      // the tail is written before the failure, so a parser which
+      // sees the failure sees all the tokens before it
+      this.tail = t;
+      this.failure = e;
+    }
+    return;
+  }
+
+  // move the tokens published so far into "tokens", waiting for
+  // at least one to be published. If the lexer failed and there
+  // are no tokens left before the failure, throw what it threw.
+  void drain(TokenBuffer tokens)
+  {
+    long h = this.head;
+    long t;
+
+    for (int round = 0; (t = this.tail) == h; round++) {
+      Throwable e = this.failure;
+      if (e != null && this.tail == h)
+        rethrow(e);
+      pause(round);
+    }
+    for (; h < t; h++) {
+      int i = (int) h & MASK;
+      tokens.add(TokenBuffer.kinds[this.kind[i]], this.line[i], this.col[i],
+          this.sym[i]);
+    }
+    this.head = h;
+    return;
+  }
+
+  private static void rethrow(Throwable e)
+  {
+    if (e instanceof RuntimeException)
+      throw (RuntimeException) e;
+    if (e instanceof Error)
+      throw (Error) e;
+    throw new RuntimeException(e);
+  }
+}
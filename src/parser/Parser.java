@@ -1,18 +1,96 @@
 package parser;
 
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import ast.Ast;
 import lexer.Lexer;
-import lexer.Token;
 import lexer.Token.Kind;
+import lexer.TokenBuffer;
+import lexer.TokenRing;
+import control.CompilationContext;
+import control.Diagnostic;
 
 public class Parser
 {
-  Lexer lexer;
-  Token current;
+  CompilationContext ctx;
+  String fname; // for diagnostics
+  TokenBuffer tokens;
+  int pos; // index of the current token in "tokens"
+  Kind current; // kind of the current token
+  Ast ast; // the tree being built
+
+  // A method body skipped by the lazy mode, to be parsed in a
+  // second pass (see "parseBody()"). No phase after the parser
+  // needs the declarations before the bodies yet, so the driver
+  // parses every body right after the first pass: the lazy mode
+  // does all the work of the eager one, and more, and keeps the
+  // tokens from the first skipped body on till the second pass.
+  public static class LazyBody
+  {
+    int start; // index of its "{" token
+    int node; // its BODY node, without children until it is parsed
+    boolean parsed;
+
+    LazyBody(int start, int node)
+    {
+      this.start = start;
+      this.node = node;
+      this.parsed = false;
+    }
+
+    public int node()
+    {
+      return this.node;
+    }
+  }
+
+  ArrayList<LazyBody> bodies = new ArrayList<LazyBody>();
+  int materialized = 0; // bodies parsed by "parseBody()"
+  int root; // the class parsed by a worker (see "parseClassDeclsParallel()")
+  // the syntax errors of a worker, held back till it is known to
+  // have parsed just its own classes, or null to report them at once
+  ArrayList<Diagnostic> diagnostics = null;
+  // the tokens the parser keeps from (see "keepFrom()"), and from
+  // the first skipped body, or -1
+  int keep = -1;
+  int lazyMark = -1;
 
-  public Parser(String fname, java.io.InputStream fstream)
+  public Parser(String fname, java.io.InputStream fstream,
+      CompilationContext ctx)
   {
-    lexer = new Lexer(fname, fstream);
-    current = lexer.nextToken();
+    this(new Lexer(fname, fstream, ctx));
+  }
+
+  // a parser in the compilation of "lexer"
+  public Parser(Lexer lexer)
+  {
+    this.ctx = lexer.context();
+    this.fname = lexer.fileName();
+    if (ctx.pipeline) {
+      TokenRing ring = new TokenRing(lexer);
+      ring.start();
+      this.tokens = new TokenBuffer(ring);
+    } else
+      this.tokens = new TokenBuffer(lexer);
+    this.pos = 0;
+    tokens.mark(0);
+    this.keep = 0;
+    current = tokens.kind(0);
+    this.ast = new Ast(tokens.symbols());
+  }
+
+  // a parser for the tokens of "parent", starting at token "pos"
+  // of its full token buffer, and building into "ast"
+  private Parser(Parser parent, int pos, Ast ast)
+  {
+    this.ctx = parent.ctx;
+    this.fname = parent.fname;
+    this.tokens = parent.tokens;
+    this.pos = pos;
+    current = tokens.kind(pos);
+    this.ast = ast;
   }
 
   // /////////////////////////////////////////////
@@ -21,186 +99,406 @@ public class Parser
 
   private void advance()
   {
-    current = lexer.nextToken();
+    current = tokens.kind(++pos);
+  }
+
+  // the kind of the k-th token after the current one
+  private Kind lookahead(int k)
+  {
+    return tokens.kind(pos + k);
+  }
+
+  // Let the token buffer drop the tokens before token "i" (see
+  // "TokenBuffer.java"), at the start of a statement, a method or
+  // a class, where no pending operator of the expression parser
+  // refers back to an earlier token, and no recovery goes back
+  // either. Only the parser of the whole file keeps such a mark:
+  // those of lazy bodies and of the workers of the parallel mode
+  // read tokens the parser of the file keeps for them.
+  private void keepFrom(int i)
+  {
+    if (keep < 0 || top != 0)
+      return;
+    tokens.mark(i);
+    tokens.release(keep);
+    keep = i;
+    return;
+  }
+
+  // the line of the current token
+  private int line()
+  {
+    return tokens.line(pos);
+  }
+
+  // A syntax error unwinds the parser to the nearest point it can
+  // recover at (see "recover()"), once it has been reported. It
+  // carries no stack trace, as it is not a bug.
+  static class SyntaxError extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+
+    SyntaxError()
+    {
+      super(null, null, false, false);
+    }
+  }
+
+  private void report(String msg)
+  {
+    if (diagnostics != null)
+      diagnostics.add(new Diagnostic(fname, tokens.line(pos),
+          tokens.column(pos), msg));
+    else
+      ctx.error(fname, tokens.line(pos), tokens.column(pos), msg);
+    return;
   }
 
   private void eatToken(Kind kind)
   {
-    if (kind == current.kind)
+    if (kind == current)
       advance();
     else {
-      System.out.println("Expects: " + kind.toString());
-      System.out.println("But got: " + current.kind.toString());
-      System.exit(1);
+      report("syntax error: expects " + kind.toString() + ", but got "
+          + current.toString());
+      throw new SyntaxError();
     }
   }
 
   private void error()
   {
-    System.out.println("Syntax error: compilation aborting...\n");
-    System.exit(1);
-    return;
+    report("syntax error: unexpected " + current.toString());
+    throw new SyntaxError();
   }
 
-  // ////////////////////////////////////////////////////////////
-  // below are method for parsing.
-
-  // A bunch of parsing methods to parse expressions. The messy
-  // parts are to deal with precedence and associativity.
-
-  // ExpList -> Exp ExpRest*
-  // ->
-  // ExpRest -> , Exp
-  private void parseExpList()
+  // Panic-mode recovery: drop what was half done by the expression
+  // parser, and skip tokens up to a point where parsing can go on.
+  // Statements resume after a ";", or at a token which starts or
+  // ends a statement; classes resume at the next "class", which
+  // only appears at the top level.
+  private void recover(int top, int otop, boolean statement)
   {
-    if (current.kind == Kind.TOKEN_RPAREN)
-      return;
-    parseExp();
-    while (current.kind == Kind.TOKEN_COMMER) {
+    this.top = top;
+    this.otop = otop;
+    for (;;) {
+      switch (current) {
+      case TOKEN_EOF:
+      case TOKEN_CLASS:
+        return;
+      case TOKEN_SEMI:
+        if (statement) {
+          advance();
+          return;
+        }
+        break;
+      case TOKEN_RBRACE:
+      case TOKEN_LBRACE:
+      case TOKEN_IF:
+      case TOKEN_WHILE:
+      case TOKEN_SYSTEM:
+      case TOKEN_RETURN:
+      case TOKEN_PUBLIC:
+        if (statement)
+          return;
+        break;
+      default:
+        break;
+      }
       advance();
-      parseExp();
     }
-    return;
   }
 
-  // AtomExp -> (exp)
+  // ////////////////////////////////////////////////////////////
+  // below are method for parsing.
+
+  // Expressions are parsed without recursion, by a precedence
+  // parser with an explicit stack, so that the nesting depth of
+  // an expression is only limited by the heap. The grammar, from
+  // the loosest to the tightest binding:
+  //
+  // Exp -> Exp && Exp
+  // -> Exp < Exp
+  // -> Exp + Exp
+  // -> Exp - Exp
+  // -> Exp * Exp
+  // -> ! Exp
+  // -> AtomExp
+  // -> AtomExp .id (ExpList)
+  // -> AtomExp [Exp]
+  // -> AtomExp .length
+  // AtomExp -> (Exp)
   // -> INTEGER_LITERAL
   // -> true
   // -> false
   // -> this
   // -> id
-  // -> new int [exp]
+  // -> new int [Exp]
   // -> new id ()
-  private void parseAtomExp()
+  // ExpList -> Exp ExpRest*
+  // ->
+  // ExpRest -> , Exp
+  //
+  // All binary operators are left associative. The stack holds the
+  // pending operators (as the indices of their tokens), and markers
+  // for the groups an operand is nested in, each waiting for its
+  // closing token. The trees of the operands parsed so far are kept
+  // on a second stack.
+  private static final int GROUP_PAREN = -1; // ( Exp )
+  private static final int GROUP_INDEX = -2; // AtomExp [ Exp ]
+  private static final int GROUP_NEWARRAY = -3; // new int [ Exp ]
+  private static final int GROUP_ARGS = -4; // .id ( ExpList )
+
+  private int[] stack = new int[64];
+  private int top = 0;
+  private int[] operands = new int[64];
+  private int otop = 0;
+
+  private void push(int x)
   {
-    switch (current.kind) {
-    case TOKEN_LPAREN:
-      advance();
-      parseExp();
-      eatToken(Kind.TOKEN_RPAREN);
-      return;
-    case TOKEN_NUM:
-      advance();
-      return;
-    case TOKEN_TRUE:
-      advance();
-      return;
-    case TOKEN_THIS:
-      advance();
-      return;
-    case TOKEN_ID:
-      advance();
-      return;
-    case TOKEN_NEW: {
-      advance();
-      switch (current.kind) {
-      case TOKEN_INT:
-        advance();
-        eatToken(Kind.TOKEN_LBRACK);
-        parseExp();
-        eatToken(Kind.TOKEN_RBRACK);
-        return;
-      case TOKEN_ID:
-        advance();
-        eatToken(Kind.TOKEN_LPAREN);
-        eatToken(Kind.TOKEN_RPAREN);
-        return;
-      default:
-        error();
-        return;
-      }
-    }
-    default:
-      error();
-      return;
-    }
+    if (top == stack.length)
+      stack = java.util.Arrays.copyOf(stack, 2 * top);
+    stack[top++] = x;
   }
 
-  // NotExp -> AtomExp
-  // -> AtomExp .id (expList)
-  // -> AtomExp [exp]
-  // -> AtomExp .length
-  private void parseNotExp()
+  private void pushOperand(int n)
   {
-    parseAtomExp();
-    while (current.kind == Kind.TOKEN_DOT || current.kind == Kind.TOKEN_LBRACK) {
-      if (current.kind == Kind.TOKEN_DOT) {
-        advance();
-        if (current.kind == Kind.TOKEN_LENGTH) {
-          advance();
-          return;
-        }
-        eatToken(Kind.TOKEN_ID);
-        eatToken(Kind.TOKEN_LPAREN);
-        parseExpList();
-        eatToken(Kind.TOKEN_RPAREN);
-      } else {
-        advance();
-        parseExp();
-        eatToken(Kind.TOKEN_RBRACK);
-      }
-    }
-    return;
+    if (otop == operands.length)
+      operands = java.util.Arrays.copyOf(operands, 2 * otop);
+    operands[otop++] = n;
   }
 
-  // TimesExp -> ! TimesExp
-  // -> NotExp
-  private void parseTimesExp()
+  private int popOperand()
   {
-    while (current.kind == Kind.TOKEN_NOT) {
-      advance();
-    }
-    parseNotExp();
-    return;
+    return operands[--otop];
   }
 
-  // AddSubExp -> TimesExp * TimesExp
-  // -> TimesExp
-  private void parseAddSubExp()
+  // a node of kind "k" with the children "l" and "r"
+  private int binary(Ast.Kind k, int line, int l, int r)
   {
-    parseTimesExp();
-    while (current.kind == Kind.TOKEN_TIMES) {
-      advance();
-      parseTimesExp();
+    int n = ast.node(k, line);
+    ast.add(n, l);
+    ast.add(n, r);
+    return n;
+  }
+
+  // a node of kind "k" with the child "c"
+  private int unary(Ast.Kind k, int line, int c)
+  {
+    int n = ast.node(k, line);
+    ast.add(n, c);
+    return n;
+  }
+
+  // the precedence of a binary operator, or 0 for other tokens
+  private static int precedence(Kind kind)
+  {
+    switch (kind) {
+    case TOKEN_AND:
+      return 1;
+    case TOKEN_LT:
+      return 2;
+    case TOKEN_ADD:
+    case TOKEN_SUB:
+      return 3;
+    case TOKEN_TIMES:
+      return 4;
+    default:
+      return 0;
     }
-    return;
   }
 
-  // LtExp -> AddSubExp + AddSubExp
-  // -> AddSubExp - AddSubExp
-  // -> AddSubExp
-  private void parseLtExp()
+  // the node kind of a binary operator
+  private static Ast.Kind operator(Kind kind)
   {
-    parseAddSubExp();
-    while (current.kind == Kind.TOKEN_ADD || current.kind == Kind.TOKEN_SUB) {
-      advance();
-      parseAddSubExp();
+    switch (kind) {
+    case TOKEN_AND:
+      return Ast.Kind.AND;
+    case TOKEN_LT:
+      return Ast.Kind.LT;
+    case TOKEN_ADD:
+      return Ast.Kind.ADD;
+    case TOKEN_SUB:
+      return Ast.Kind.SUB;
+    case TOKEN_TIMES:
+      return Ast.Kind.TIMES;
+    default:
+      new util.Bug();
+      return null;
     }
-    return;
   }
 
-  // AndExp -> LtExp < LtExp
-  // -> LtExp
-  private void parseAndExp()
+  // pop the pending operators which bind at least as tight as
+  // "prec", down to the innermost group, and apply them to their
+  // operands.
+  private void reduce(int base, int prec)
   {
-    parseLtExp();
-    while (current.kind == Kind.TOKEN_LT) {
-      advance();
-      parseLtExp();
+    while (top > base && stack[top - 1] >= 0) {
+      int op = stack[top - 1];
+      Kind kind = tokens.kind(op);
+      if (kind == Kind.TOKEN_NOT) {
+        // "!" binds tighter than any binary operator
+        top--;
+        pushOperand(unary(Ast.Kind.NOT, tokens.line(op), popOperand()));
+        continue;
+      }
+      if (precedence(kind) < prec)
+        break;
+      top--;
+      int r = popOperand();
+      int l = popOperand();
+      pushOperand(binary(operator(kind), tokens.line(op), l, r));
     }
     return;
   }
 
-  // Exp -> AndExp && AndExp
-  // -> AndExp
-  private void parseExp()
+  // parse an expression and return its tree
+  private int parseExp()
   {
-    parseAndExp();
-    while (current.kind == Kind.TOKEN_AND) {
-      advance();
-      parseAndExp();
+    int base = top;
+
+    operand: for (;;) {
+      // an operand is expected
+      while (current == Kind.TOKEN_NOT) {
+        push(pos);
+        advance();
+      }
+      switch (current) {
+      case TOKEN_LPAREN:
+        advance();
+        push(GROUP_PAREN);
+        continue operand;
+      case TOKEN_NUM:
+        pushOperand(ast.node(Ast.Kind.NUM, line(), tokens.symbol(pos)));
+        advance();
+        break;
+      case TOKEN_TRUE:
+        pushOperand(ast.node(Ast.Kind.TRUE, line()));
+        advance();
+        break;
+      case TOKEN_FALSE:
+        pushOperand(ast.node(Ast.Kind.FALSE, line()));
+        advance();
+        break;
+      case TOKEN_THIS:
+        pushOperand(ast.node(Ast.Kind.THIS, line()));
+        advance();
+        break;
+      case TOKEN_ID:
+        pushOperand(ast.node(Ast.Kind.ID, line(), tokens.symbol(pos)));
+        advance();
+        break;
+      case TOKEN_NEW: {
+        int line = line();
+        advance();
+        switch (current) {
+        case TOKEN_INT:
+          advance();
+          eatToken(Kind.TOKEN_LBRACK);
+          push(GROUP_NEWARRAY);
+          continue operand;
+        case TOKEN_ID:
+          pushOperand(ast.node(Ast.Kind.NEW_OBJECT, line, tokens.symbol(pos)));
+          advance();
+          eatToken(Kind.TOKEN_LPAREN);
+          eatToken(Kind.TOKEN_RPAREN);
+          break;
+        default:
+          error();
+          return -1;
+        }
+        break;
+      }
+      default:
+        error();
+        return -1;
+      }
+
+      // an atom has been parsed: postfix operators, then a binary
+      // operator or the end of the innermost group.
+      boolean postfix = true;
+      for (;;) {
+        if (postfix && current == Kind.TOKEN_DOT) {
+          advance();
+          if (current == Kind.TOKEN_LENGTH) {
+            pushOperand(unary(Ast.Kind.LENGTH, line(), popOperand()));
+            advance();
+            postfix = false;
+            continue;
+          }
+          // the call takes the receiver, and then the arguments
+          // as they are parsed
+          int call = ast.node(Ast.Kind.CALL, line(), tokens.symbol(pos));
+          ast.add(call, popOperand());
+          pushOperand(call);
+          eatToken(Kind.TOKEN_ID);
+          eatToken(Kind.TOKEN_LPAREN);
+          if (current == Kind.TOKEN_RPAREN) {
+            advance();
+            continue;
+          }
+          push(GROUP_ARGS);
+          continue operand;
+        }
+        if (postfix && current == Kind.TOKEN_LBRACK) {
+          advance();
+          push(GROUP_INDEX);
+          continue operand;
+        }
+
+        int prec = precedence(current);
+        if (prec > 0) {
+          reduce(base, prec);
+          push(pos);
+          advance();
+          continue operand;
+        }
+
+        // the end of an operand sequence: close the innermost group
+        reduce(base, 0);
+        if (top == base)
+          return popOperand();
+        switch (stack[top - 1]) {
+        case GROUP_PAREN:
+          top--;
+          eatToken(Kind.TOKEN_RPAREN);
+          // a parenthesized expression is an atom
+          postfix = true;
+          continue;
+        case GROUP_INDEX: {
+          top--;
+          eatToken(Kind.TOKEN_RBRACK);
+          int index = popOperand();
+          int array = popOperand();
+          pushOperand(binary(Ast.Kind.ARRAY_SELECT, ast.line(array), array,
+              index));
+          postfix = true;
+          continue;
+        }
+        case GROUP_NEWARRAY: {
+          top--;
+          eatToken(Kind.TOKEN_RBRACK);
+          int size = popOperand();
+          pushOperand(unary(Ast.Kind.NEW_ARRAY, ast.line(size), size));
+          postfix = true;
+          continue;
+        }
+        case GROUP_ARGS: {
+          int arg = popOperand();
+          ast.add(operands[otop - 1], arg);
+          if (current == Kind.TOKEN_COMMER) {
+            advance();
+            continue operand;
+          }
+          top--;
+          eatToken(Kind.TOKEN_RPAREN);
+          postfix = true;
+          continue;
+        }
+        default:
+          new util.Bug();
+        }
+      }
     }
-    return;
   }
 
   // Statement -> { Statement* }
@@ -209,21 +507,100 @@ public class Parser
   // -> System.out.println ( Exp ) ;
   // -> id = Exp ;
   // -> id [ Exp ]= Exp ;
-  private void parseStatement()
+  private int parseStatement()
+  {
+    int line = line();
+    int n;
+
+    switch (current) {
+    case TOKEN_LBRACE:
+      advance();
+      n = ast.node(Ast.Kind.BLOCK, line);
+      parseStatements(n);
+      eatToken(Kind.TOKEN_RBRACE);
+      return n;
+    case TOKEN_IF:
+      advance();
+      n = ast.node(Ast.Kind.IF, line);
+      eatToken(Kind.TOKEN_LPAREN);
+      ast.add(n, parseExp());
+      eatToken(Kind.TOKEN_RPAREN);
+      add(n, parseStatementRecovering());
+      eatToken(Kind.TOKEN_ELSE);
+      add(n, parseStatementRecovering());
+      return n;
+    case TOKEN_WHILE:
+      advance();
+      n = ast.node(Ast.Kind.WHILE, line);
+      eatToken(Kind.TOKEN_LPAREN);
+      ast.add(n, parseExp());
+      eatToken(Kind.TOKEN_RPAREN);
+      add(n, parseStatementRecovering());
+      return n;
+    case TOKEN_SYSTEM:
+      advance();
+      eatToken(Kind.TOKEN_DOT);
+      eatToken(Kind.TOKEN_OUT);
+      eatToken(Kind.TOKEN_DOT);
+      eatToken(Kind.TOKEN_PRINTLN);
+      eatToken(Kind.TOKEN_LPAREN);
+      n = unary(Ast.Kind.PRINT, line, parseExp());
+      eatToken(Kind.TOKEN_RPAREN);
+      eatToken(Kind.TOKEN_SEMI);
+      return n;
+    case TOKEN_ID: {
+      int id = tokens.symbol(pos);
+      advance();
+      if (current == Kind.TOKEN_LBRACK) {
+        advance();
+        n = ast.node(Ast.Kind.ARRAY_ASSIGN, line, id);
+        ast.add(n, parseExp());
+        eatToken(Kind.TOKEN_RBRACK);
+      } else
+        n = ast.node(Ast.Kind.ASSIGN, line, id);
+      eatToken(Kind.TOKEN_ASSIGN);
+      ast.add(n, parseExp());
+      eatToken(Kind.TOKEN_SEMI);
+      return n;
+    }
+    default:
+      error();
+      return -1;
+    }
+  }
+
+  // parse a statement, or return -1 after a syntax error in it,
+  // with the parser moved on to the next statement
+  private int parseStatementRecovering()
+  {
+    int top = this.top;
+    int otop = this.otop;
+
+    keepFrom(pos);
+    try {
+      return parseStatement();
+    } catch (SyntaxError e) {
+      recover(top, otop, true);
+      return -1;
+    }
+  }
+
+  // add "c" to the children of "n", unless it failed to parse
+  private void add(int n, int c)
   {
-    // Lab1. Exercise 4: Fill in the missing code
-    // to parse a statement.
-    new util.Todo();
+    if (c >= 0)
+      ast.add(n, c);
+    return;
   }
 
   // Statements -> Statement Statements
   // ->
-  private void parseStatements()
+  private void parseStatements(int parent)
   {
-    while (current.kind == Kind.TOKEN_LBRACE || current.kind == Kind.TOKEN_IF
-        || current.kind == Kind.TOKEN_WHILE
-        || current.kind == Kind.TOKEN_SYSTEM || current.kind == Kind.TOKEN_ID) {
-      parseStatement();
+    while (current == Kind.TOKEN_LBRACE || current == Kind.TOKEN_IF
+        || current == Kind.TOKEN_WHILE
+        || current == Kind.TOKEN_SYSTEM || current == Kind.TOKEN_ID) {
+      add(parent, parseStatementRecovering());
     }
     return;
   }
@@ -232,31 +609,62 @@ public class Parser
   // -> boolean
   // -> int
   // -> id
-  private void parseType()
+  private int parseType()
+  {
+    int line = line();
+
+    switch (current) {
+    case TOKEN_INT:
+      advance();
+      if (current == Kind.TOKEN_LBRACK) {
+        advance();
+        eatToken(Kind.TOKEN_RBRACK);
+        return ast.node(Ast.Kind.TYPE_INT_ARRAY, line);
+      }
+      return ast.node(Ast.Kind.TYPE_INT, line);
+    case TOKEN_BOOLEAN:
+      advance();
+      return ast.node(Ast.Kind.TYPE_BOOLEAN, line);
+    case TOKEN_ID: {
+      int n = ast.node(Ast.Kind.TYPE_CLASS, line, tokens.symbol(pos));
+      advance();
+      return n;
+    }
+    default:
+      error();
+      return -1;
+    }
+  }
+
+  // Type id, as a node of kind "k" with the type as its child
+  private int parseTypedId(Ast.Kind k)
   {
-    // Lab1. Exercise 4: Fill in the missing code
-    // to parse a type.
-    new util.Todo();
+    int type = parseType();
+    int n = ast.node(k, line(), tokens.symbol(pos));
+    ast.add(n, type);
+    eatToken(Kind.TOKEN_ID);
+    return n;
   }
 
   // VarDecl -> Type id ;
-  private void parseVarDecl()
+  private int parseVarDecl()
   {
     // to parse the "Type" nonterminal in this method, instead of writing
     // a fresh one.
-    parseType();
-    eatToken(Kind.TOKEN_ID);
+    int n = parseTypedId(Ast.Kind.VAR_DECL);
     eatToken(Kind.TOKEN_SEMI);
-    return;
+    return n;
   }
 
   // VarDecls -> VarDecl VarDecls
   // ->
-  private void parseVarDecls()
+  // A statement may also start with an id, so an id begins a
+  // VarDecl only if it is followed by another id.
+  private void parseVarDecls(int parent)
   {
-    while (current.kind == Kind.TOKEN_INT || current.kind == Kind.TOKEN_BOOLEAN
-        || current.kind == Kind.TOKEN_ID) {
-      parseVarDecl();
+    while (current == Kind.TOKEN_INT || current == Kind.TOKEN_BOOLEAN
+        || (current == Kind.TOKEN_ID && lookahead(1) == Kind.TOKEN_ID)) {
+      ast.add(parent, parseVarDecl());
     }
     return;
   }
@@ -264,68 +672,317 @@ public class Parser
   // FormalList -> Type id FormalRest*
   // ->
   // FormalRest -> , Type id
-  private void parseFormalList()
+  private void parseFormalList(int method)
   {
-    if (current.kind == Kind.TOKEN_INT || current.kind == Kind.TOKEN_BOOLEAN
-        || current.kind == Kind.TOKEN_ID) {
-      parseType();
-      eatToken(Kind.TOKEN_ID);
-      while (current.kind == Kind.TOKEN_COMMER) {
+    if (current == Kind.TOKEN_INT || current == Kind.TOKEN_BOOLEAN
+        || current == Kind.TOKEN_ID) {
+      ast.add(method, parseTypedId(Ast.Kind.FORMAL));
+      while (current == Kind.TOKEN_COMMER) {
         advance();
-        parseType();
-        eatToken(Kind.TOKEN_ID);
+        ast.add(method, parseTypedId(Ast.Kind.FORMAL));
       }
     }
     return;
   }
 
-  // Method -> public Type id ( FormalList )
-  // { VarDecl* Statement* return Exp ;}
-  private void parseMethod()
+  // Method -> public Type id ( FormalList ) MethodBody
+  private int parseMethod()
+  {
+    eatToken(Kind.TOKEN_PUBLIC);
+    int n = parseTypedId(Ast.Kind.METHOD);
+    eatToken(Kind.TOKEN_LPAREN);
+    parseFormalList(n);
+    eatToken(Kind.TOKEN_RPAREN);
+    int body = ast.node(Ast.Kind.BODY, line());
+    ast.add(n, body);
+    if (ctx.lazy)
+      skipMethodBody(body);
+    else
+      parseMethodBody(body);
+    return n;
+  }
+
+  // MethodBody -> { VarDecl* Statement* return Exp ;}
+  // with the children added to the node "body"
+  private void parseMethodBody(int body)
+  {
+    eatToken(Kind.TOKEN_LBRACE);
+    parseVarDecls(body);
+    parseStatements(body);
+    eatToken(Kind.TOKEN_RETURN);
+    ast.add(body, parseExp());
+    eatToken(Kind.TOKEN_SEMI);
+    eatToken(Kind.TOKEN_RBRACE);
+    return;
+  }
+
+  // skip a method body by matching its braces, and record it to
+  // be parsed later into the node "body". The tokens from the first
+  // skipped body on are kept till all the bodies are parsed.
+  private void skipMethodBody(int body)
+  {
+    int start = pos;
+    int depth = 1;
+
+    if (keep >= 0 && lazyMark < 0) {
+      tokens.mark(start);
+      lazyMark = start;
+    }
+    eatToken(Kind.TOKEN_LBRACE);
+    while (depth > 0) {
+      if (current == Kind.TOKEN_LBRACE)
+        depth++;
+      else if (current == Kind.TOKEN_RBRACE)
+        depth--;
+      else if (current == Kind.TOKEN_EOF)
+        error();
+      advance();
+    }
+    bodies.add(new LazyBody(start, body));
+    return;
+  }
+
+  // the method bodies skipped so far, in source order
+  public java.util.List<LazyBody> bodies()
   {
-    // Lab1. Exercise 4: Fill in the missing code
-    // to parse a method.
-    new util.Todo();
+    return bodies;
+  }
+
+  // parse a skipped method body into its BODY node, unless it has
+  // already been
+  public void parseBody(LazyBody body)
+  {
+    if (body.parsed)
+      return;
+    try {
+      new Parser(this, body.start, ast).parseMethodBody(body.node);
+    } catch (SyntaxError e) {
+      // reported; the body is left incomplete
+    }
+    body.parsed = true;
+    materialized++;
+    if (lazyMark >= 0 && materialized == bodies.size()) {
+      tokens.release(lazyMark);
+      lazyMark = -1;
+    }
     return;
   }
 
+  // how many method bodies have been skipped, and how many of
+  // them have been parsed since
+  public int skippedBodies()
+  {
+    return bodies.size();
+  }
+
+  public int materializedBodies()
+  {
+    return materialized;
+  }
+
+  // parse a method, or return -1 after a syntax error in it, with
+  // the parser moved on to the next method (see "recoverMethod()").
+  // The tokens of the method are kept till it is parsed, for the
+  // recovery to match its braces.
+  private int parseMethodRecovering()
+  {
+    int top = this.top;
+    int otop = this.otop;
+    int start = pos;
+
+    keepFrom(pos);
+    if (keep >= 0)
+      tokens.mark(start);
+    try {
+      return parseMethod();
+    } catch (SyntaxError e) {
+      recoverMethod(top, otop, start);
+      return -1;
+    } finally {
+      if (keep >= 0)
+        tokens.release(start);
+    }
+  }
+
+  // Recovery from a syntax error in the method starting at token
+  // "start". In the body, skip to the "}" which closes it, by
+  // matching braces, as "skipMethodBody()" does; so the eager and
+  // the lazy modes go on at the same token, and report the same
+  // errors. Before the body, skip to the next "public", or to the
+  // "}" of the class, unless a body comes first, which is skipped
+  // too.
+  private void recoverMethod(int top, int otop, int start)
+  {
+    int depth = 0;
+
+    this.top = top;
+    this.otop = otop;
+    for (int i = start; i < pos; i++) {
+      if (tokens.kind(i) == Kind.TOKEN_LBRACE)
+        depth++;
+      else if (tokens.kind(i) == Kind.TOKEN_RBRACE)
+        depth--;
+    }
+    for (;;) {
+      switch (current) {
+      case TOKEN_EOF:
+        return;
+      case TOKEN_CLASS:
+      case TOKEN_PUBLIC:
+        if (depth == 0)
+          return;
+        break;
+      case TOKEN_LBRACE:
+        depth++;
+        break;
+      case TOKEN_RBRACE:
+        if (depth == 0)
+          return;
+        if (--depth == 0) {
+          advance();
+          return;
+        }
+        break;
+      default:
+        break;
+      }
+      advance();
+    }
+  }
+
   // MethodDecls -> MethodDecl MethodDecls
   // ->
-  private void parseMethodDecls()
+  private void parseMethodDecls(int parent)
   {
-    while (current.kind == Kind.TOKEN_PUBLIC) {
-      parseMethod();
+    while (current == Kind.TOKEN_PUBLIC) {
+      add(parent, parseMethodRecovering());
     }
     return;
   }
 
   // ClassDecl -> class id { VarDecl* MethodDecl* }
   // -> class id extends id { VarDecl* MethodDecl* }
-  private void parseClassDecl()
+  private int parseClassDecl()
   {
     eatToken(Kind.TOKEN_CLASS);
+    int n = ast.node(Ast.Kind.CLASS, line(), tokens.symbol(pos));
     eatToken(Kind.TOKEN_ID);
-    if (current.kind == Kind.TOKEN_EXTENDS) {
+    if (current == Kind.TOKEN_EXTENDS) {
       eatToken(Kind.TOKEN_EXTENDS);
+      ast.setAux(n, tokens.symbol(pos));
       eatToken(Kind.TOKEN_ID);
     }
     eatToken(Kind.TOKEN_LBRACE);
-    parseVarDecls();
-    parseMethodDecls();
+    parseVarDecls(n);
+    parseMethodDecls(n);
     eatToken(Kind.TOKEN_RBRACE);
-    return;
+    return n;
+  }
+
+  // parse a class, or return -1 after a syntax error in it, with
+  // the parser moved on to the next class
+  private int parseClassDeclRecovering()
+  {
+    int top = this.top;
+    int otop = this.otop;
+
+    keepFrom(pos);
+    try {
+      return parseClassDecl();
+    } catch (SyntaxError e) {
+      recover(top, otop, false);
+      return -1;
+    }
   }
 
   // ClassDecls -> ClassDecl ClassDecls
   // ->
-  private void parseClassDecls()
+  // Anything else up to the end of the file is reported, and
+  // skipped to the next class.
+  private void parseClassDecls(int program)
   {
-    while (current.kind == Kind.TOKEN_CLASS) {
-      parseClassDecl();
+    if (ctx.parallel && parseClassDeclsParallel(program))
+      return;
+    while (current != Kind.TOKEN_EOF) {
+      add(program, parseClassDeclRecovering());
     }
     return;
   }
 
+  // Class bodies are independent of each other, so they can be
+  // parsed on different threads. A prescan of the (full) token
+  // buffer finds where each top-level class starts by the brace
+  // depth, then each class is parsed by a parser of its own on a
+  // ForkJoinPool worker into a tree of its own, and these trees
+  // are grafted onto "program" in source order. A worker must stop
+  // exactly where the next class starts; if one does not, the split
+  // was wrong, and its trees and errors are dropped. Return false,
+  // having done nothing, if the classes can not be split so, and
+  // leave them to the sequential parser.
+  private boolean parseClassDeclsParallel(int program)
+  {
+    int n = tokens.fillAll();
+    ArrayList<Integer> starts = new ArrayList<Integer>();
+    int depth = 0;
+
+    for (int i = pos; i < n - 1; i++) {
+      switch (tokens.kind(i)) {
+      case TOKEN_LBRACE:
+        depth++;
+        break;
+      case TOKEN_RBRACE:
+        depth--;
+        break;
+      case TOKEN_CLASS:
+        if (depth == 0)
+          starts.add(i);
+        break;
+      default:
+        break;
+      }
+    }
+    // anything before the first class is left to the sequential
+    // parser
+    if (starts.isEmpty() || starts.get(0) != pos)
+      return false;
+    starts.add(n - 1);
+
+    ArrayList<ForkJoinTask<Parser>> tasks = new ArrayList<ForkJoinTask<Parser>>();
+    for (int k = 0; k < starts.size() - 1; k++) {
+      int start = starts.get(k);
+      int end = starts.get(k + 1);
+      tasks.add(ForkJoinPool.commonPool().submit(() -> {
+        Parser p = new Parser(this, start, new Ast(ast.symbols));
+        p.diagnostics = new ArrayList<Diagnostic>();
+        // the class is node 0 of the worker's tree
+        p.root = p.parseClassDeclRecovering();
+        // report and skip anything after the class
+        while (p.pos < end)
+          p.parseClassDeclRecovering();
+        return p.pos == end ? p : null;
+      }));
+    }
+    ArrayList<Parser> parsers = new ArrayList<Parser>();
+    for (ForkJoinTask<Parser> task : tasks)
+      parsers.add(task.join());
+    if (parsers.contains(null))
+      return false;
+    for (Parser p : parsers) {
+      for (Diagnostic d : p.diagnostics)
+        ctx.error(d.file, d.line, d.column, d.message);
+      int offset = ast.graft(p.ast, 0);
+      if (p.root >= 0)
+        ast.add(program, p.root + offset);
+      for (LazyBody body : p.bodies) {
+        body.node += offset;
+        bodies.add(body);
+      }
+    }
+    pos = n - 1;
+    current = tokens.kind(pos);
+    return true;
+  }
+
   // MainClass -> class id
   // {
   // public static void main ( String [] id )
@@ -333,26 +990,56 @@ public class Parser
   // Statement
   // }
   // }
-  private void parseMainClass()
+  private int parseMainClass()
   {
-    // Lab1. Exercise 4: Fill in the missing code
-    // to parse a main class as described by the
-    // grammar above.
-    new util.Todo();
+    eatToken(Kind.TOKEN_CLASS);
+    int n = ast.node(Ast.Kind.MAIN_CLASS, line(), tokens.symbol(pos));
+    eatToken(Kind.TOKEN_ID);
+    eatToken(Kind.TOKEN_LBRACE);
+    eatToken(Kind.TOKEN_PUBLIC);
+    eatToken(Kind.TOKEN_STATIC);
+    eatToken(Kind.TOKEN_VOID);
+    eatToken(Kind.TOKEN_MAIN);
+    eatToken(Kind.TOKEN_LPAREN);
+    eatToken(Kind.TOKEN_STRING);
+    eatToken(Kind.TOKEN_LBRACK);
+    eatToken(Kind.TOKEN_RBRACK);
+    ast.setAux(n, tokens.symbol(pos));
+    eatToken(Kind.TOKEN_ID);
+    eatToken(Kind.TOKEN_RPAREN);
+    eatToken(Kind.TOKEN_LBRACE);
+    add(n, parseStatementRecovering());
+    eatToken(Kind.TOKEN_RBRACE);
+    eatToken(Kind.TOKEN_RBRACE);
+    return n;
   }
 
   // Program -> MainClass ClassDecl*
-  private void parseProgram()
+  private int parseProgram()
   {
-    parseMainClass();
-    parseClassDecls();
+    int n = ast.node(Ast.Kind.PROGRAM, line());
+    try {
+      ast.add(n, parseMainClass());
+    } catch (SyntaxError e) {
+      recover(0, 0, false);
+    }
+    parseClassDecls(n);
     eatToken(Kind.TOKEN_EOF);
-    return;
+    return n;
   }
 
-  public void parse()
+  // Parse the program into a tree, whose root (the PROGRAM node)
+  // is node 0. The syntax errors go to the diagnostics of the
+  // context, and the tree leaves out the statements and classes
+  // they were found in. However the parse ends, the lexer thread
+  // of the pipeline mode is stopped before the lexer is closed.
+  public Ast parse()
   {
-    parseProgram();
-    return;
+    try {
+      parseProgram();
+    } finally {
+      tokens.cancel();
+    }
+    return ast;
   }
 }
@@ -0,0 +1,67 @@
+package slp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// The assembly code being generated, written to a channel (a file,
+// or the standard input of the assembler) through a buffer of a
+// fixed size as it is emitted, so the code of a program of any size
+// is never held in memory. The code is ASCII, so the characters go
+// out as they are, with no encoder. A failure to write is thrown
+// unchecked, out of the code generators, to the caller of "write".
+public class AsmWriter
+{
+  WritableByteChannel channel;
+  ByteBuffer buf;
+  long size; // the bytes written so far
+
+  public AsmWriter(WritableByteChannel channel)
+  {
+    this.channel = channel;
+    this.buf = ByteBuffer.allocateDirect(1 << 20);
+    this.size = 0;
+  }
+
+  public void write(String s)
+  {
+    int n = s.length();
+
+    for (int i = 0; i < n; i++) {
+      if (!this.buf.hasRemaining())
+        drain();
+      this.buf.put((byte) s.charAt(i));
+    }
+    this.size += n;
+    return;
+  }
+
+  private void drain()
+  {
+    this.buf.flip();
+    try {
+      while (this.buf.hasRemaining())
+        this.channel.write(this.buf);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    this.buf.clear();
+    return;
+  }
+
+  // write out what is buffered, and close the channel
+  public void close()
+  {
+    try {
+      drain();
+    } finally {
+      try {
+        this.channel.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return;
+  }
+}
@@ -0,0 +1,19 @@
+package slp;
+
+import slp.Slp.Exp;
+
+// A division by zero in a program being run, by the interpreters
+// or by the compiled code, at the operator "op", which says where
+// it is in the source.
+public class DivisionByZero extends ArithmeticException
+{
+  private static final long serialVersionUID = 1L;
+
+  public Exp.Op op;
+
+  public DivisionByZero(Exp.Op op)
+  {
+    super("/ by zero");
+    this.op = op;
+  }
+}
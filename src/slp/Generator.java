@@ -0,0 +1,146 @@
+package slp;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+// A generator of random straight-line programs, in the concrete
+// syntax "Parser" reads, to test the parser and the backends against
+// each other, and to time them on programs of any size. The program
+// has "statements" statements at its top level, and its expressions
+// nest at most "depth" deep; the same seed gives the same program.
+// It only divides by constants other than 0, so it runs to the end.
+// An expression has two subexpressions more often than none, so a
+// statement tends to be as large as the depth lets it be: that is,
+// exponential in the depth.
+//
+// The text goes out as it is generated, and the generator keeps no
+// more than the nesting it is in, so a program (or a statement) may
+// be far larger than memory.
+public class Generator
+{
+  static final int VARS = 32; // the variables are "v0" to "v31"
+
+  int statements;
+  int depth;
+  Random random;
+  StringBuilder buf;
+
+  public Generator(int statements, int depth, long seed)
+  {
+    this.statements = statements;
+    this.depth = depth;
+    this.random = new Random(seed);
+    this.buf = new StringBuilder(1 << 16);
+  }
+
+  // the kinds of work on the stack, each followed by a depth
+  static final Object STM = new Object();
+  static final Object EXP = new Object();
+
+  public void generate(PrintStream out)
+  {
+    ArrayDeque<Object> work = new ArrayDeque<Object>();
+
+    for (int i = 0; i < this.statements; i++) {
+      work.push(";\n");
+      work.push(this.depth);
+      work.push(STM);
+      while (!work.isEmpty()) {
+        Object t = work.pop();
+
+        if (t instanceof String)
+          this.buf.append((String) t);
+        else {
+          int d = (Integer) work.pop();
+          if (t == STM)
+            statement(work, d);
+          else
+            expression(work, d);
+        }
+        if (this.buf.length() >= 1 << 16) {
+          out.print(this.buf);
+          this.buf.setLength(0);
+        }
+      }
+    }
+    out.print(this.buf);
+    this.buf.setLength(0);
+    out.flush();
+    return;
+  }
+
+  // push "t" to be generated at depth "d"
+  private static void push(ArrayDeque<Object> work, Object t, int d)
+  {
+    work.push(d);
+    work.push(t);
+    return;
+  }
+
+  // a statement in which expressions nest at most "d" deep; one in
+  // ten is a "print"
+  private void statement(ArrayDeque<Object> work, int d)
+  {
+    if (this.random.nextInt(10) > 0) {
+      this.buf.append('v').append(this.random.nextInt(VARS)).append(" := ");
+      push(work, EXP, d);
+      return;
+    }
+    int n = 1 + this.random.nextInt(3);
+    this.buf.append("print(");
+    work.push(")");
+    for (int i = 0; i < n; i++) {
+      if (i > 0)
+        work.push(", ");
+      push(work, EXP, d);
+    }
+    return;
+  }
+
+  // an expression nesting at most "d" deep
+  private void expression(ArrayDeque<Object> work, int d)
+  {
+    int k = d <= 0 ? this.random.nextInt(2) : this.random.nextInt(12);
+
+    switch (k) {
+    case 0:
+      this.buf.append(this.random.nextInt(100));
+      break;
+    case 1:
+      this.buf.append('v').append(this.random.nextInt(VARS));
+      break;
+    case 2:
+      // an Eseq, with one or two statements
+      this.buf.append('(');
+      work.push(")");
+      push(work, EXP, d - 1);
+      work.push(", ");
+      if (this.random.nextBoolean()) {
+        push(work, STM, d - 1);
+        work.push("; ");
+      }
+      push(work, STM, d - 1);
+      break;
+    case 3:
+      this.buf.append('(');
+      work.push(" / " + (1 + this.random.nextInt(9)) + ")");
+      push(work, EXP, d - 1);
+      break;
+    default:
+      // "+", "-" or "*", in parentheses half of the time so the
+      // precedences matter
+      String op = k % 3 == 0 ? " + " : k % 3 == 1 ? " - " : " * ";
+      boolean paren = this.random.nextBoolean();
+      if (paren) {
+        this.buf.append('(');
+        work.push(")");
+      }
+      push(work, EXP, d - 1);
+      work.push(op);
+      push(work, EXP, d - 1);
+      break;
+    }
+    return;
+  }
+}
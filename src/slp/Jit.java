@@ -0,0 +1,615 @@
+package slp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import slp.Slp.Exp;
+import slp.Slp.ExpList;
+import slp.Slp.Stm;
+import util.Bug;
+
+// A compiler of straight-line programs to JVM bytecode, run in
+// this JVM: the program becomes a hidden class, so the JIT compiles
+// it to native code, with no assembler and no process to start.
+//
+// The variables are locals. A method can hold no more than 64K of
+// code, so the statements of a large program are spread over
+// methods "m0", "m1", ..., each of type (Out, int[])V: a method
+// loads the variables from the int[] into its locals when it
+// starts, and stores them back when it ends. The printing goes to
+// an "Out" buffer.
+//
+// A program that can not be laid out so (a single statement too
+// large for a method, too many variables or constants) is left to
+// the stack machine of "Vm": "Jit.compile()" returns null.
+public class Jit
+{
+  // the output of a compiled program, flushed when large and at
+  // the end
+  static class Out
+  {
+    StringBuilder buf;
+    PrintStream out;
+
+    Out(PrintStream out)
+    {
+      this.buf = new StringBuilder(1 << 16);
+      this.out = out;
+    }
+
+    void print(int v)
+    {
+      this.buf.append(v).append(' ');
+      return;
+    }
+
+    void newline()
+    {
+      this.buf.append('\n');
+      if (this.buf.length() >= 1 << 16)
+        flush();
+      return;
+    }
+
+    void flush()
+    {
+      this.out.print(this.buf);
+      this.out.flush();
+      this.buf.setLength(0);
+      return;
+    }
+  }
+
+  // A method is closed when the code of its statements grows
+  // beyond this, so HotSpot does not take it for a huge method it
+  // will not compile. A larger statement gets a method of its own,
+  // up to the 64K a method can hold.
+  static final int METHOD_LIMIT = 8000;
+  static final int MAX_VARS = 2048;
+  static final String CLASS = "slp/JitProgram";
+  static final String METHOD_TYPE = "(Lslp/Jit$Out;[I)V";
+
+  // the opcodes used
+  static final int ICONST_0 = 0x03;
+  static final int BIPUSH = 0x10;
+  static final int SIPUSH = 0x11;
+  static final int LDC = 0x12;
+  static final int LDC_W = 0x13;
+  static final int ILOAD = 0x15;
+  static final int ALOAD_0 = 0x2a;
+  static final int ALOAD_1 = 0x2b;
+  static final int IALOAD = 0x2e;
+  static final int ISTORE = 0x36;
+  static final int IASTORE = 0x4f;
+  static final int IADD = 0x60;
+  static final int ISUB = 0x64;
+  static final int IMUL = 0x68;
+  static final int IDIV = 0x6c;
+  static final int RETURN = 0xb1;
+  static final int INVOKEVIRTUAL = 0xb6;
+  static final int INVOKESTATIC = 0xb8;
+  static final int WIDE = 0xc4;
+
+  // thrown when the program does not fit in a class
+  static class TooLarge extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+
+    TooLarge()
+    {
+      super(null, null, false, false);
+    }
+  }
+
+  // A division by anything but a constant other than 0 is a call
+  // of "divide()", with the number of the division, so a division
+  // by zero can be told where it is in the source.
+  static class ZeroDivisor extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+    int site;
+
+    ZeroDivisor(int site)
+    {
+      super(null, null, false, false);
+      this.site = site;
+    }
+  }
+
+  static int divide(int left, int right, int site)
+  {
+    if (right == 0)
+      throw new ZeroDivisor(site);
+    return left / right;
+  }
+
+  // the constant pool
+  ByteArrayOutputStream pool;
+  DataOutputStream poolOut;
+  HashMap<String, Integer> constants;
+  int poolSize; // the index of the next entry
+
+  // the code of the current method
+  byte[] code;
+  int size;
+  int depth; // of the operand stack
+  int maxDepth;
+
+  HashMap<String, Integer> slots; // of the variables, from 0
+  ArrayList<byte[]> methods; // the code of each method
+  int printRef, newlineRef, divideRef;
+  ArrayList<Exp.Op> divisions; // by their numbers
+
+  private Jit()
+  {
+    this.pool = new ByteArrayOutputStream();
+    this.poolOut = new DataOutputStream(this.pool);
+    this.constants = new HashMap<String, Integer>();
+    this.poolSize = 1;
+    this.code = new byte[1 << 16];
+    this.size = 0;
+    this.depth = 0;
+    this.maxDepth = 0;
+    this.slots = new HashMap<String, Integer>();
+    this.methods = new ArrayList<byte[]>();
+    this.divisions = new ArrayList<Exp.Op>();
+  }
+
+  // ///////////////////////////////////////////
+  // the constant pool
+
+  private int constant(String key, int tag, Object... parts)
+  {
+    Integer index = this.constants.get(key);
+
+    if (index != null)
+      return index;
+    if (this.poolSize >= 0xffff)
+      throw new TooLarge();
+    try {
+      this.poolOut.writeByte(tag);
+      for (Object p : parts)
+        if (p instanceof String)
+          this.poolOut.writeUTF((String) p);
+        else if (tag == 3) // an Integer
+          this.poolOut.writeInt((Integer) p);
+        else
+          this.poolOut.writeShort((Integer) p);
+    } catch (IOException e) {
+      new Bug();
+    }
+    index = this.poolSize++;
+    this.constants.put(key, index);
+    return index;
+  }
+
+  private int utf8(String s)
+  {
+    return constant("U" + s, 1, s);
+  }
+
+  private int classRef(String name)
+  {
+    return constant("C" + name, 7, utf8(name));
+  }
+
+  private int methodRef(String cls, String name, String type)
+  {
+    int c = classRef(cls);
+    int nt = constant("N" + name + type, 12, utf8(name), utf8(type));
+    return constant("M" + cls + "." + name + type, 10, c, nt);
+  }
+
+  private int integer(int n)
+  {
+    return constant("I" + n, 3, n);
+  }
+
+  // ///////////////////////////////////////////
+  // code
+
+  private void emit(int b)
+  {
+    if (this.size == this.code.length)
+      this.code = Arrays.copyOf(this.code, 2 * this.size);
+    this.code[this.size++] = (byte) b;
+    return;
+  }
+
+  private void emit2(int s)
+  {
+    emit(s >> 8);
+    emit(s);
+    return;
+  }
+
+  private void stack(int delta)
+  {
+    this.depth += delta;
+    if (this.depth > this.maxDepth)
+      this.maxDepth = this.depth;
+    return;
+  }
+
+  private void push(int n)
+  {
+    if (n >= -1 && n <= 5)
+      emit(ICONST_0 + n);
+    else if (n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+      emit(BIPUSH);
+      emit(n);
+    } else if (n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+      emit(SIPUSH);
+      emit2(n);
+    } else {
+      int index = integer(n);
+      if (index <= 0xff) {
+        emit(LDC);
+        emit(index);
+      } else {
+        emit(LDC_W);
+        emit2(index);
+      }
+    }
+    stack(1);
+    return;
+  }
+
+  // the local of the variable "id": 0 and 1 are the parameters
+  private int local(String id)
+  {
+    Integer x = this.slots.get(id);
+
+    if (x == null)
+      new Bug();
+    return x + 2;
+  }
+
+  private void load(int local)
+  {
+    if (local > 0xff) {
+      emit(WIDE);
+      emit(ILOAD);
+      emit2(local);
+    } else {
+      emit(ILOAD);
+      emit(local);
+    }
+    stack(1);
+    return;
+  }
+
+  private void store(int local)
+  {
+    if (local > 0xff) {
+      emit(WIDE);
+      emit(ISTORE);
+      emit2(local);
+    } else {
+      emit(ISTORE);
+      emit(local);
+    }
+    stack(-1);
+    return;
+  }
+
+  private void op(Exp.OP_T op)
+  {
+    switch (op) {
+    case ADD:
+      emit(IADD);
+      break;
+    case SUB:
+      emit(ISUB);
+      break;
+    case TIMES:
+      emit(IMUL);
+      break;
+    case DIVIDE:
+      emit(IDIV);
+      break;
+    default:
+      new Bug();
+    }
+    stack(-1);
+    return;
+  }
+
+  private void invoke(int method, int args)
+  {
+    emit(INVOKEVIRTUAL);
+    emit2(method);
+    stack(-1 - args);
+    return;
+  }
+
+  // the division "e", of the two values on the stack
+  private void divide(Exp.Op e)
+  {
+    push(this.divisions.size());
+    this.divisions.add(e);
+    emit(INVOKESTATIC);
+    emit2(this.divideRef);
+    stack(-2);
+    return;
+  }
+
+  // Compile "stm" with a work stack, not recursively, so the depth
+  // of the tree does not matter: a node pushes its children (in
+  // reverse), and in between them, the code to emit, as Runnables.
+  private void compileStm(Stm.T stm)
+  {
+    ArrayDeque<Object> work = new ArrayDeque<Object>();
+
+    work.push(stm);
+    while (!work.isEmpty()) {
+      Object t = work.pop();
+
+      if (t instanceof Runnable)
+        ((Runnable) t).run();
+      else if (t instanceof Exp.Id)
+        load(local(((Exp.Id) t).id));
+      else if (t instanceof Exp.Num)
+        push(((Exp.Num) t).num);
+      else if (t instanceof Exp.Op) {
+        Exp.Op e = (Exp.Op) t;
+
+        if (e.op == Exp.OP_T.DIVIDE
+            && !(e.right instanceof Exp.Num && ((Exp.Num) e.right).num != 0))
+          work.push((Runnable) () -> divide(e));
+        else
+          work.push((Runnable) () -> op(e.op));
+        work.push(e.right);
+        work.push(e.left);
+      } else if (t instanceof Exp.Eseq) {
+        work.push(((Exp.Eseq) t).exp);
+        work.push(((Exp.Eseq) t).stm);
+      } else if (t instanceof Stm.Compound) {
+        work.push(((Stm.Compound) t).s2);
+        work.push(((Stm.Compound) t).s1);
+      } else if (t instanceof Stm.Assign) {
+        Stm.Assign s = (Stm.Assign) t;
+
+        work.push((Runnable) () -> store(local(s.id)));
+        work.push(s.exp);
+      } else if (t instanceof Stm.Print) {
+        ArrayList<Exp.T> exps = ExpList.elements(((Stm.Print) t).explist);
+
+        work.push((Runnable) () -> {
+          emit(ALOAD_0);
+          stack(1);
+          invoke(this.newlineRef, 0);
+        });
+        for (int i = exps.size() - 1; i >= 0; i--) {
+          work.push((Runnable) () -> invoke(this.printRef, 1));
+          work.push(exps.get(i));
+          work.push((Runnable) () -> {
+            emit(ALOAD_0);
+            stack(1);
+          });
+        }
+      } else
+        new Bug();
+    }
+    return;
+  }
+
+  // ///////////////////////////////////////////
+  // methods
+
+  // the variables, in the order they are first met
+  private void collect(Stm.T prog)
+  {
+    ArrayDeque<Object> work = new ArrayDeque<Object>();
+
+    work.push(prog);
+    while (!work.isEmpty()) {
+      Object t = work.pop();
+      if (t instanceof Stm.Compound) {
+        work.push(((Stm.Compound) t).s2);
+        work.push(((Stm.Compound) t).s1);
+      } else if (t instanceof Stm.Assign) {
+        this.slots.putIfAbsent(((Stm.Assign) t).id, this.slots.size());
+        work.push(((Stm.Assign) t).exp);
+      } else if (t instanceof Stm.Print) {
+        ExpList.T list = ((Stm.Print) t).explist;
+        ArrayDeque<Exp.T> exps = new ArrayDeque<Exp.T>();
+        while (list instanceof ExpList.Pair) {
+          exps.push(((ExpList.Pair) list).exp);
+          list = ((ExpList.Pair) list).list;
+        }
+        exps.push(((ExpList.Last) list).exp);
+        for (Exp.T e : exps)
+          work.push(e);
+      } else if (t instanceof Exp.Id)
+        this.slots.putIfAbsent(((Exp.Id) t).id, this.slots.size());
+      else if (t instanceof Exp.Op) {
+        work.push(((Exp.Op) t).right);
+        work.push(((Exp.Op) t).left);
+      } else if (t instanceof Exp.Eseq) {
+        work.push(((Exp.Eseq) t).exp);
+        work.push(((Exp.Eseq) t).stm);
+      }
+    }
+    return;
+  }
+
+  // start a method: load the variables into the locals
+  private void open()
+  {
+    this.size = 0;
+    for (int i = 0; i < this.slots.size(); i++) {
+      emit(ALOAD_1);
+      stack(1);
+      push(i);
+      emit(IALOAD);
+      stack(-1);
+      store(i + 2);
+    }
+    return;
+  }
+
+  // end a method: store the locals back into the variables
+  private void close()
+  {
+    for (int i = 0; i < this.slots.size(); i++) {
+      emit(ALOAD_1);
+      stack(1);
+      push(i);
+      load(i + 2);
+      emit(IASTORE);
+      stack(-3);
+    }
+    emit(RETURN);
+    this.methods.add(Arrays.copyOf(this.code, this.size));
+    return;
+  }
+
+  // Lay the top-level statements of "prog" out in methods: a
+  // statement which takes a method over the limit is moved to a
+  // method of its own.
+  private void compileProgram(Stm.T prog)
+  {
+    ArrayDeque<Stm.T> work = new ArrayDeque<Stm.T>();
+    // what a method can hold, less the code to store the variables
+    int hardLimit = 0xffff - 1 - 9 * this.slots.size();
+    int empty; // the size of a method with no statement
+
+    open();
+    empty = this.size;
+    work.push(prog);
+    while (!work.isEmpty()) {
+      Stm.T s = work.pop();
+      if (s instanceof Stm.Compound) {
+        work.push(((Stm.Compound) s).s2);
+        work.push(((Stm.Compound) s).s1);
+        continue;
+      }
+      int start = this.size;
+      compileStm(s);
+      if (this.size - empty <= METHOD_LIMIT)
+        continue;
+      if (start > empty) {
+        this.size = start;
+        close();
+        open();
+        compileStm(s);
+      }
+      if (this.size > hardLimit || this.maxDepth > 0xffff)
+        throw new TooLarge();
+      close();
+      open();
+    }
+    close();
+    return;
+  }
+
+  private byte[] classFile()
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    int maxLocals = this.slots.size() + 2;
+
+    try {
+      out.writeInt(0xcafebabe);
+      out.writeShort(0);
+      out.writeShort(61); // Java 17
+      out.writeShort(this.poolSize);
+      this.pool.writeTo(out);
+      out.writeShort(0x0030); // final super
+      out.writeShort(classRef(CLASS));
+      out.writeShort(classRef("java/lang/Object"));
+      out.writeShort(0); // interfaces
+      out.writeShort(0); // fields
+      out.writeShort(this.methods.size());
+      for (int i = 0; i < this.methods.size(); i++) {
+        byte[] c = this.methods.get(i);
+        out.writeShort(0x0008); // static
+        out.writeShort(utf8("m" + i));
+        out.writeShort(utf8(METHOD_TYPE));
+        out.writeShort(1); // attributes
+        out.writeShort(utf8("Code"));
+        out.writeInt(12 + c.length);
+        out.writeShort(this.maxDepth);
+        out.writeShort(maxLocals);
+        out.writeInt(c.length);
+        out.write(c);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+      }
+      out.writeShort(0); // class attributes
+    } catch (IOException e) {
+      new Bug();
+    }
+    return bytes.toByteArray();
+  }
+
+  // ///////////////////////////////////////////
+  // the interface
+
+  // the class compiled from "prog", or null if it does not fit in
+  // a class
+  public static Jit compile(Stm.T prog)
+  {
+    Jit jit = new Jit();
+
+    try {
+      jit.collect(prog);
+      if (jit.slots.size() > MAX_VARS)
+        return null;
+      jit.printRef = jit.methodRef("slp/Jit$Out", "print", "(I)V");
+      jit.newlineRef = jit.methodRef("slp/Jit$Out", "newline", "()V");
+      jit.divideRef = jit.methodRef("slp/Jit", "divide", "(III)I");
+      jit.compileProgram(prog);
+      // the names of the class and of the methods go into the pool
+      // before it is written out
+      jit.classRef(CLASS);
+      jit.classRef("java/lang/Object");
+      jit.utf8("Code");
+      jit.utf8(METHOD_TYPE);
+      for (int i = 0; i < jit.methods.size(); i++)
+        jit.utf8("m" + i);
+    } catch (TooLarge e) {
+      return null;
+    }
+    return jit;
+  }
+
+  // Load the class and run its methods in order, printing to
+  // "out". A division by zero stops the program with a
+  // DivisionByZero.
+  public void run(PrintStream out)
+  {
+    Out o = new Out(out);
+    int[] vars = new int[this.slots.size()];
+
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup()
+          .defineHiddenClass(classFile(), true);
+      MethodType type = MethodType.methodType(void.class, Out.class,
+          int[].class);
+      for (int i = 0; i < this.methods.size(); i++) {
+        MethodHandle m = lookup.findStatic(lookup.lookupClass(), "m" + i,
+            type);
+        m.invokeExact(o, vars);
+      }
+    } catch (ZeroDivisor e) {
+      throw new DivisionByZero(this.divisions.get(e.site));
+    } catch (Throwable e) {
+      e.printStackTrace();
+      new Bug();
+    } finally {
+      o.flush();
+    }
+    return;
+  }
+}
@@ -0,0 +1,215 @@
+package slp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+import control.CompilationContext;
+
+// The lexer of the concrete syntax of straight-line programs:
+//
+//   Stm     -> Stm ; Stm | id := Exp | print ( ExpList )
+//   Exp     -> id | num | Exp Binop Exp | ( Exp ) | ( Stm , Exp )
+//   ExpList -> Exp , ExpList | Exp
+//   Binop   -> + | - | * | /
+//
+// with "//" comments to the end of the line. The input is read in
+// blocks, so a file of any size is lexed in a fixed buffer.
+public class Lexer
+{
+  public enum Kind {
+    ASSIGN("\":=\""),
+    COMMA("\",\""),
+    DIVIDE("\"/\""),
+    EOF("the end of the file"),
+    ID("an id"),
+    LPAREN("\"(\""),
+    MINUS("\"-\""),
+    NUM("a number"),
+    PLUS("\"+\""),
+    PRINT("\"print\""),
+    RPAREN("\")\""),
+    SEMI("\";\""),
+    TIMES("\"*\"");
+
+    // how an error message names the token
+    public final String text;
+
+    Kind(String text)
+    {
+      this.text = text;
+    }
+  }
+
+  public static class Token
+  {
+    public Kind kind;
+    public String id; // of an ID
+    public int num; // of a NUM
+    public int line;
+    public int column;
+
+    Token(Kind kind, int line, int column)
+    {
+      this.kind = kind;
+      this.line = line;
+      this.column = column;
+    }
+
+    @Override
+    public String toString()
+    {
+      if (this.kind == Kind.ID)
+        return "\"" + this.id + "\"";
+      if (this.kind == Kind.NUM)
+        return "\"" + this.num + "\"";
+      return this.kind.text;
+    }
+  }
+
+  String fname;
+  InputStream in;
+  CompilationContext ctx;
+  byte[] buf;
+  int pos;
+  int limit;
+  int line;
+  long lineStart; // the number of bytes before the line
+  long read; // the number of bytes before "buf"
+  // the names seen so far, so each is one String however often
+  // it appears
+  HashMap<String, String> names;
+  StringBuilder text;
+
+  public Lexer(String fname, InputStream in, CompilationContext ctx)
+  {
+    this.fname = fname;
+    this.in = in;
+    this.ctx = ctx;
+    this.buf = new byte[1 << 16];
+    this.pos = 0;
+    this.limit = 0;
+    this.line = 1;
+    this.lineStart = 0;
+    this.read = 0;
+    this.names = new HashMap<String, String>();
+    this.text = new StringBuilder();
+  }
+
+  // the next byte, without consuming it, or -1 at the end
+  private int peek()
+  {
+    if (this.pos == this.limit) {
+      this.read += this.limit;
+      this.pos = 0;
+      try {
+        this.limit = Math.max(0, this.in.read(this.buf));
+      } catch (IOException e) {
+        this.ctx.error(this.fname, this.line, column(), e.toString());
+        this.limit = 0;
+      }
+      if (this.limit == 0)
+        return -1;
+    }
+    return this.buf[this.pos] & 0xff;
+  }
+
+  private int column()
+  {
+    return (int) (this.read + this.pos - this.lineStart) + 1;
+  }
+
+  private void error(String msg)
+  {
+    this.ctx.error(this.fname, this.line, column(), "lexical error: " + msg);
+    return;
+  }
+
+  public Token nextToken()
+  {
+    for (;;) {
+      int c = peek();
+
+      // blanks and comments
+      if (c == '\n') {
+        this.pos++;
+        this.line++;
+        this.lineStart = this.read + this.pos;
+        continue;
+      }
+      if (c == ' ' || c == '\t' || c == '\r') {
+        this.pos++;
+        continue;
+      }
+      int col = column();
+      if (c == -1)
+        return new Token(Kind.EOF, this.line, col);
+      this.pos++;
+      if (c == '/' && peek() == '/') {
+        while (peek() != '\n' && peek() != -1)
+          this.pos++;
+        continue;
+      }
+
+      switch (c) {
+      case '(':
+        return new Token(Kind.LPAREN, this.line, col);
+      case ')':
+        return new Token(Kind.RPAREN, this.line, col);
+      case ',':
+        return new Token(Kind.COMMA, this.line, col);
+      case ';':
+        return new Token(Kind.SEMI, this.line, col);
+      case '+':
+        return new Token(Kind.PLUS, this.line, col);
+      case '-':
+        return new Token(Kind.MINUS, this.line, col);
+      case '*':
+        return new Token(Kind.TIMES, this.line, col);
+      case '/':
+        return new Token(Kind.DIVIDE, this.line, col);
+      case ':':
+        if (peek() == '=') {
+          this.pos++;
+          return new Token(Kind.ASSIGN, this.line, col);
+        }
+        error("expected \"=\" after \":\"");
+        continue;
+      default:
+        break;
+      }
+
+      if (c >= '0' && c <= '9') {
+        long n = c - '0';
+        while ((c = peek()) >= '0' && c <= '9') {
+          this.pos++;
+          n = Math.min(n * 10 + c - '0', 1L << 32);
+        }
+        if (n > Integer.MAX_VALUE) {
+          error("integer too large");
+          n = 0;
+        }
+        Token t = new Token(Kind.NUM, this.line, col);
+        t.num = (int) n;
+        return t;
+      }
+
+      if (Character.isLetter(c) || c == '_') {
+        this.text.setLength(0);
+        this.text.append((char) c);
+        while (Character.isLetterOrDigit(c = peek()) || c == '_') {
+          this.pos++;
+          this.text.append((char) c);
+        }
+        String s = this.text.toString();
+        if (s.equals("print"))
+          return new Token(Kind.PRINT, this.line, col);
+        Token t = new Token(Kind.ID, this.line, col);
+        t.id = this.names.computeIfAbsent(s, k -> k);
+        return t;
+      }
+
+      error("illegal character '" + (char) c + "'");
+    }
+  }
+}
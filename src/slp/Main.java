@@ -1,8 +1,21 @@
 package slp;
 
-import java.io.FileOutputStream;
-import java.io.FileWriter;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import slp.Slp.Exp;
 import slp.Slp.Exp.Eseq;
@@ -12,240 +25,443 @@ import slp.Slp.Exp.Op;
 import slp.Slp.ExpList;
 import slp.Slp.Stm;
 import util.Bug;
-import util.Todo;
+import control.CompilationContext;
 import control.Control;
 
 public class Main
 {
-  // ///////////////////////////////////////////
-  // maximum number of args
+  String fname; // of the program, for diagnostics
+  CompilationContext ctx;
 
-  private int maxArgsExp(Exp.T exp)
+  public Main(String fname, CompilationContext ctx)
   {
-    new Todo();
-    return -1;
+    this.fname = fname;
+    this.ctx = ctx;
   }
 
-  private int maxArgsStm(Stm.T stm)
+  // ///////////////////////////////////////////
+  // The programs may be generated, and chain a million statements
+  // or operators, so none of the walks below recurses: each keeps
+  // its work on a stack of its own.
+
+  // ///////////////////////////////////////////
+  // maximum number of args
+
+  // the most arguments of any "print" in "prog" (in a nested
+  // expression too)
+  private int maxArgsStm(Stm.T prog)
   {
-    if (stm instanceof Stm.Compound) {
-      Stm.Compound s = (Stm.Compound) stm;
-      int n1 = maxArgsStm(s.s1);
-      int n2 = maxArgsStm(s.s2);
-
-      return n1 >= n2 ? n1 : n2;
-    } else if (stm instanceof Stm.Assign) {
-      new Todo();
-      return -1;
-    } else if (stm instanceof Stm.Print) {
-      new Todo();
-      return -1;
-    } else
-      new Bug();
-    return 0;
+    ArrayDeque<Object> work = new ArrayDeque<Object>();
+    int max = 0;
+
+    work.push(prog);
+    while (!work.isEmpty()) {
+      Object t = work.pop();
+      if (t instanceof Stm.Compound) {
+        work.push(((Stm.Compound) t).s2);
+        work.push(((Stm.Compound) t).s1);
+      } else if (t instanceof Stm.Assign)
+        work.push(((Stm.Assign) t).exp);
+      else if (t instanceof Stm.Print) {
+        ArrayList<Exp.T> exps = ExpList.elements(((Stm.Print) t).explist);
+        max = Math.max(max, exps.size());
+        for (Exp.T e : exps)
+          work.push(e);
+      } else if (t instanceof Op) {
+        work.push(((Op) t).left);
+        work.push(((Op) t).right);
+      } else if (t instanceof Eseq) {
+        work.push(((Eseq) t).stm);
+        work.push(((Eseq) t).exp);
+      } else if (!(t instanceof Id || t instanceof Num))
+        new Bug();
+    }
+    return max;
   }
 
   // ////////////////////////////////////////
-  // interpreter
+  // interpreter: the reference for the stack machine of "Vm"
+
+  // Markers on the work stack of the interpreter. A node is run when
+  // popped; under EXIT is a node whose children have run, and
+  // whose value is now computed.
+  static final Object EXIT = new Object();
+  static final Object PRINT = new Object();
+  static final Object NEWLINE = new Object();
+
+  HashMap<String, Integer> env; // variables are 0 until assigned
+  StringBuilder out;
 
-  private void interpExp(Exp.T exp)
+  private void interpStm(Stm.T prog)
   {
-    new Todo();
+    ArrayDeque<Object> work = new ArrayDeque<Object>();
+    int[] values = new int[64];
+    int sp = 0;
+
+    work.push(prog);
+    while (!work.isEmpty()) {
+      Object t = work.pop();
+      if (sp + 1 >= values.length)
+        values = Arrays.copyOf(values, 2 * values.length);
+
+      if (t == EXIT) {
+        t = work.pop();
+        if (t instanceof Op) {
+          int right = values[--sp];
+          int left = values[sp - 1];
+          switch (((Op) t).op) {
+          case ADD:
+            values[sp - 1] = left + right;
+            break;
+          case SUB:
+            values[sp - 1] = left - right;
+            break;
+          case TIMES:
+            values[sp - 1] = left * right;
+            break;
+          case DIVIDE:
+            if (right == 0)
+              throw new DivisionByZero((Op) t);
+            values[sp - 1] = left / right;
+            break;
+          default:
+            new Bug();
+          }
+        } else if (t instanceof Stm.Assign)
+          env.put(((Stm.Assign) t).id, values[--sp]);
+        else
+          new Bug();
+      } else if (t == PRINT)
+        out.append(values[--sp]).append(' ');
+      else if (t == NEWLINE) {
+        out.append('\n');
+        if (out.length() >= 1 << 16) {
+          System.out.print(out);
+          out.setLength(0);
+        }
+      } else if (t instanceof Id) {
+        Integer v = env.get(((Id) t).id);
+        values[sp++] = v == null ? 0 : v;
+      } else if (t instanceof Num)
+        values[sp++] = ((Num) t).num;
+      else if (t instanceof Op) {
+        work.push(t);
+        work.push(EXIT);
+        work.push(((Op) t).right);
+        work.push(((Op) t).left);
+      } else if (t instanceof Eseq) {
+        work.push(((Eseq) t).exp);
+        work.push(((Eseq) t).stm);
+      } else if (t instanceof Stm.Compound) {
+        work.push(((Stm.Compound) t).s2);
+        work.push(((Stm.Compound) t).s1);
+      } else if (t instanceof Stm.Assign) {
+        work.push(t);
+        work.push(EXIT);
+        work.push(((Stm.Assign) t).exp);
+      } else if (t instanceof Stm.Print) {
+        // each value is printed before the next is computed
+        ArrayList<Exp.T> exps = ExpList.elements(((Stm.Print) t).explist);
+        work.push(NEWLINE);
+        for (int i = exps.size() - 1; i >= 0; i--) {
+          work.push(PRINT);
+          work.push(exps.get(i));
+        }
+      } else
+        new Bug();
+    }
+    return;
   }
 
-  private void interpStm(Stm.T prog)
+  // Run "prog" by walking its tree, on the stack machine, or
+  // compiled to a JVM class (or on the stack machine, if it does
+  // not fit in a class). A division by zero is a runtime error of
+  // the program, reported at its operator.
+  private void interp(Stm.T prog, Control.ConSlp.T how)
   {
-    if (prog instanceof Stm.Compound) {
-      new Todo();
-    } else if (prog instanceof Stm.Assign) {
-      new Todo();
-    } else if (prog instanceof Stm.Print) {
-      new Todo();
-    } else
-      new Bug();
+    PrintStream stdout = System.out;
+
+    try {
+      if (how == Control.ConSlp.T.JIT) {
+        Jit jit = Jit.compile(prog);
+        if (jit != null) {
+          jit.run(stdout);
+          return;
+        }
+        how = Control.ConSlp.T.VM;
+      }
+      if (how == Control.ConSlp.T.VM)
+        new Vm(prog).run(stdout);
+      else {
+        env = new HashMap<String, Integer>();
+        out = new StringBuilder();
+        try {
+          interpStm(prog);
+        } finally {
+          stdout.print(out);
+          stdout.flush();
+        }
+      }
+    } catch (DivisionByZero e) {
+      ctx.error(fname, e.op.line, e.op.column,
+          "runtime error: division by zero");
+    }
+    return;
   }
 
   // ////////////////////////////////////////
   // compile
   HashSet<String> ids;
-  StringBuffer buf;
+  AsmWriter asm;
 
   private void emit(String s)
   {
-    buf.append(s);
-  }
-
-  private void compileExp(Exp.T exp)
-  {
-    if (exp instanceof Id) {
-      Exp.Id e = (Exp.Id) exp;
-      String id = e.id;
-
-      emit("\tmovl\t" + id + ", %eax\n");
-    } else if (exp instanceof Num) {
-      Exp.Num e = (Exp.Num) exp;
-      int num = e.num;
-
-      emit("\tmovl\t$" + num + ", %eax\n");
-    } else if (exp instanceof Op) {
-      Exp.Op e = (Exp.Op) exp;
-      Exp.T left = e.left;
-      Exp.T right = e.right;
-      Exp.OP_T op = e.op;
-
-      switch (op) {
-      case ADD:
-        compileExp(left);
-        emit("\tpushl\t%eax\n");
-        compileExp(right);
-        emit("\tpopl\t%edx\n");
-        emit("\taddl\t%edx, %eax\n");
-        break;
-      case SUB:
-        compileExp(left);
-        emit("\tpushl\t%eax\n");
-        compileExp(right);
-        emit("\tpopl\t%edx\n");
-        emit("\tsubl\t%eax, %edx\n");
-        emit("\tmovl\t%edx, %eax\n");
-        break;
-      case TIMES:
-        compileExp(left);
-        emit("\tpushl\t%eax\n");
-        compileExp(right);
-        emit("\tpopl\t%edx\n");
-        emit("\timul\t%edx\n");
-        break;
-      case DIVIDE:
-        compileExp(left);
-        emit("\tpushl\t%eax\n");
-        compileExp(right);
-        emit("\tpopl\t%edx\n");
-        emit("\tmovl\t%eax, %ecx\n");
-        emit("\tmovl\t%edx, %eax\n");
-        emit("\tcltd\n");
-        emit("\tdiv\t%ecx\n");
-        break;
-      default:
-        new Bug();
-      }
-    } else if (exp instanceof Eseq) {
-      Eseq e = (Eseq) exp;
-      Stm.T stm = e.stm;
-      Exp.T ee = e.exp;
-
-      compileStm(stm);
-      compileExp(ee);
-    } else
-      new Bug();
+    asm.write(s);
   }
 
-  private void compileExpList(ExpList.T explist)
+  // The label of the memory of the variable "id". It is local to
+  // the file (".L"), so a variable never clashes with a symbol of
+  // the runtime ("slp_print", ...), with "main", nor with one of
+  // libc (such as "write", which the runtime calls).
+  static String label(String id)
   {
-    if (explist instanceof ExpList.Pair) {
-      ExpList.Pair pair = (ExpList.Pair) explist;
-      Exp.T exp = pair.exp;
-      ExpList.T list = pair.list;
-
-      compileExp(exp);
-      emit("\tpushl\t%eax\n");
-      emit("\tpushl\t$slp_format\n");
-      emit("\tcall\tprintf\n");
-      emit("\taddl\t$4, %esp\n");
-      compileExpList(list);
-    } else if (explist instanceof ExpList.Last) {
-      ExpList.Last last = (ExpList.Last) explist;
-      Exp.T exp = last.exp;
-
-      compileExp(exp);
-      emit("\tpushl\t%eax\n");
-      emit("\tpushl\t$slp_format\n");
-      emit("\tcall\tprintf\n");
-      emit("\taddl\t$4, %esp\n");
-    } else
-      new Bug();
+    return ".Lv_" + id;
   }
 
+  // Compile "prog" to code which keeps the operands on the stack.
+  // A node pushes, after its children (in reverse), the code to
+  // emit in between them: a string on the work stack is emitted
+  // as it is popped.
   private void compileStm(Stm.T prog)
   {
-    if (prog instanceof Stm.Compound) {
-      Stm.Compound s = (Stm.Compound) prog;
-      Stm.T s1 = s.s1;
-      Stm.T s2 = s.s2;
-
-      compileStm(s1);
-      compileStm(s2);
-    } else if (prog instanceof Stm.Assign) {
-      Stm.Assign s = (Stm.Assign) prog;
-      String id = s.id;
-      Exp.T exp = s.exp;
-
-      ids.add(id);
-      compileExp(exp);
-      emit("\tmovl\t%eax, " + id + "\n");
-    } else if (prog instanceof Stm.Print) {
-      Stm.Print s = (Stm.Print) prog;
-      ExpList.T explist = s.explist;
-
-      compileExpList(explist);
-      emit("\tpushl\t$newline\n");
-      emit("\tcall\tprintf\n");
-      emit("\taddl\t$4, %esp\n");
-    } else
-      new Bug();
+    ArrayDeque<Object> work = new ArrayDeque<Object>();
+
+    work.push(prog);
+    while (!work.isEmpty()) {
+      Object t = work.pop();
+
+      if (t instanceof String)
+        emit((String) t);
+      else if (t instanceof Id)
+        emit("\tmovl\t" + label(((Id) t).id) + ", %eax\n");
+      else if (t instanceof Num)
+        emit("\tmovl\t$" + ((Num) t).num + ", %eax\n");
+      else if (t instanceof Op) {
+        Op e = (Op) t;
+
+        switch (e.op) {
+        case ADD:
+          work.push("\tpopl\t%edx\n" + "\taddl\t%edx, %eax\n");
+          break;
+        case SUB:
+          work.push("\tpopl\t%edx\n" + "\tsubl\t%eax, %edx\n"
+              + "\tmovl\t%edx, %eax\n");
+          break;
+        case TIMES:
+          work.push("\tpopl\t%edx\n" + "\timul\t%edx\n");
+          break;
+        case DIVIDE:
+          work.push("\tpopl\t%edx\n" + "\tmovl\t%eax, %ecx\n"
+              + "\tmovl\t%edx, %eax\n" + "\tcltd\n" + "\tidivl\t%ecx\n");
+          break;
+        default:
+          new Bug();
+        }
+        work.push(e.right);
+        work.push("\tpushl\t%eax\n");
+        work.push(e.left);
+      } else if (t instanceof Eseq) {
+        work.push(((Eseq) t).exp);
+        work.push(((Eseq) t).stm);
+      } else if (t instanceof Stm.Compound) {
+        work.push(((Stm.Compound) t).s2);
+        work.push(((Stm.Compound) t).s1);
+      } else if (t instanceof Stm.Assign) {
+        Stm.Assign s = (Stm.Assign) t;
+
+        ids.add(s.id);
+        work.push("\tmovl\t%eax, " + label(s.id) + "\n");
+        work.push(s.exp);
+      } else if (t instanceof Stm.Print) {
+        ArrayList<Exp.T> exps = ExpList.elements(((Stm.Print) t).explist);
+
+        work.push("\tcall\tslp_newline\n");
+        for (int i = exps.size() - 1; i >= 0; i--) {
+          work.push("\tcall\tslp_print\n");
+          work.push(exps.get(i));
+        }
+      } else
+        new Bug();
+    }
+    return;
   }
 
   // ////////////////////////////////////////
   public void doit(Stm.T prog)
   {
     // return the maximum number of arguments
-    if (Control.ConSlp.action == Control.ConSlp.T.ARGS) {
+    if (ctx.slpAction == Control.ConSlp.T.ARGS) {
       int numArgs = maxArgsStm(prog);
       System.out.println(numArgs);
     }
 
-    // interpret a given program
-    if (Control.ConSlp.action == Control.ConSlp.T.INTERP) {
-      interpStm(prog);
+    // fold the constants and drop the dead code first. A division
+    // by the constant 0 is an error, and then nothing runs.
+    if (ctx.slpOpt && ctx.slpAction != Control.ConSlp.T.ARGS) {
+      prog = new Optimizer(fname, ctx).optimize(prog);
+      if (ctx.hasErrors())
+        return;
     }
 
+    // interpret a given program, by walking its tree, on the stack
+    // machine, or compiled to JVM code
+    if (ctx.slpAction == Control.ConSlp.T.INTERP
+        || ctx.slpAction == Control.ConSlp.T.VM
+        || ctx.slpAction == Control.ConSlp.T.JIT)
+      interp(prog, ctx.slpAction);
+
     // compile a given SLP program to x86
-    if (Control.ConSlp.action == Control.ConSlp.T.COMPILE) {
+    if (ctx.slpAction == Control.ConSlp.T.COMPILE)
+      compile(prog);
+  }
+
+  static final long TIMEOUT = 300; // seconds, for gcc
+  static final String ASM = "slp_gen.s";
+
+  // gcc, for 32-bit code, running with "args". What it says is read
+  // as it goes, so it never waits on a full pipe, and it is killed
+  // if it takes longer than the timeout.
+  static class Gcc
+  {
+    Process process;
+    StringBuilder log;
+    Thread drain;
+    Timer timer;
+    volatile boolean killed;
+
+    Gcc(String... args) throws IOException
+    {
+      ArrayList<String> cmd = new ArrayList<String>();
+      cmd.add("gcc");
+      cmd.add("-m32");
+      cmd.addAll(Arrays.asList(args));
+      this.process = new ProcessBuilder(cmd).redirectErrorStream(true)
+          .start();
+      this.log = new StringBuilder();
+      this.drain = new Thread(() -> {
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(
+            this.process.getInputStream()))) {
+          for (String line; (line = r.readLine()) != null;)
+            this.log.append(line).append('\n');
+        } catch (IOException e) {
+          // gcc is gone
+        }
+        return;
+      });
+      this.drain.setDaemon(true);
+      this.drain.start();
+      this.timer = new Timer(true);
+      this.timer.schedule(new TimerTask() {
+        @Override
+        public void run()
+        {
+          killed = true;
+          process.destroyForcibly();
+          return;
+        }
+      }, TIMEOUT * 1000);
+    }
+
+    // wait for gcc to finish, and return what went wrong, or null
+    String finish() throws InterruptedException
+    {
+      int status = this.process.waitFor();
+      this.drain.join();
+      this.timer.cancel();
+      if (this.killed)
+        return "timed out after " + TIMEOUT + " s";
+      if (status != 0)
+        return "exit status " + status + "\n" + this.log.toString().trim();
+      return null;
+    }
+
+    void kill()
+    {
+      this.timer.cancel();
+      this.process.destroyForcibly();
+      return;
+    }
+  }
+
+  // Compile "prog" to x86, then assemble and link it with gcc. The
+  // code goes to gcc's standard input as it is generated, or with
+  // "-slp keepasm", to the file "slp_gen.s" first, so no more than
+  // a buffer of it is in memory. The data (the variables) come
+  // after the code, as they are only known when it is done, and
+  // the runtime (see "SlpRuntime") last.
+  private void compile(Stm.T prog)
+  {
+    Gcc gcc = null;
+
+    try {
+      if (ctx.slpKeepasm)
+        asm = new AsmWriter(FileChannel.open(Paths.get(ASM),
+            StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING));
+      else {
+        gcc = new Gcc("-x", "assembler", "-");
+        asm = new AsmWriter(Channels.newChannel(gcc.process
+            .getOutputStream()));
+      }
+
       ids = new HashSet<String>();
-      buf = new StringBuffer();
-
-      compileStm(prog);
-      try {
-        // FileOutputStream out = new FileOutputStream();
-        FileWriter writer = new FileWriter("slp_gen.s");
-        writer
-            .write("// Automatically generated by the Tiger compiler, do NOT edit.\n\n");
-        writer.write("\t.data\n");
-        writer.write("slp_format:\n");
-        writer.write("\t.string \"%d \"\n");
-        writer.write("newline:\n");
-        writer.write("\t.string \"\\n\"\n");
-        for (String s : this.ids) {
-          writer.write(s + ":\n");
-          writer.write("\t.int 0\n");
+      emit("// Automatically generated by the Tiger compiler, do NOT edit.\n\n");
+      emit("\t.text\n");
+      emit("\t.globl main\n");
+      emit("main:\n");
+      emit("\tpushl\t%ebp\n");
+      emit("\tmovl\t%esp, %ebp\n");
+      if (ctx.slpRegs)
+        new RegCompiler(ids, asm).compile(prog);
+      else
+        compileStm(prog);
+      emit("\tcall\tslp_flush\n");
+      emit("\txorl\t%eax, %eax\n");
+      emit("\tleave\n\tret\n\n");
+      emit("\t.data\n");
+      for (String s : this.ids) {
+        emit(label(s) + ":\n");
+        emit("\t.int 0\n");
+      }
+      emit(SlpRuntime.CODE);
+      asm.close();
+
+      if (gcc == null) {
+        gcc = new Gcc(ASM);
+        gcc.process.getOutputStream().close();
+      }
+      String error = gcc.finish();
+      if (error != null)
+        ctx.error(fname, 0, 0, "gcc: " + error);
+    } catch (IOException | UncheckedIOException e) {
+      // gcc may have quit, and closed the pipe, before the end of
+      // the code: what it said is then the error
+      String error = null;
+      if (gcc != null) {
+        try {
+          error = gcc.finish();
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
         }
-        writer.write("\n\n\t.text\n");
-        writer.write("\t.globl main\n");
-        writer.write("main:\n");
-        writer.write("\tpushl\t%ebp\n");
-        writer.write("\tmovl\t%esp, %ebp\n");
-        writer.write(buf.toString());
-        writer.write("\tleave\n\tret\n\n");
-        writer.close();
-        Process child = Runtime.getRuntime().exec("gcc slp_gen.s");
-        child.waitFor();
-        if (!Control.ConSlp.keepasm)
-          Runtime.getRuntime().exec("rm -rf slp_gen.s");
-      } catch (Exception e) {
-        e.printStackTrace();
-        System.exit(0);
       }
-      // System.out.println(buf.toString());
+      ctx.error(fname, 0, 0, "gcc: " + (error != null ? error : e));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      ctx.error(fname, 0, 0, "gcc: interrupted");
+    } finally {
+      if (gcc != null)
+        gcc.kill();
     }
+    return;
   }
 }
@@ -0,0 +1,362 @@
+package slp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import slp.Slp.Exp;
+import slp.Slp.ExpList;
+import slp.Slp.Stm;
+import util.Bug;
+import control.CompilationContext;
+
+// An optimizer of straight-line programs, run before they are
+// interpreted or compiled. A program has no branches, so each of
+// its statements runs, once, in the order of the tree, and one pass
+// in that order (and one against it) sees all there is to see:
+//
+//   - forwards, the operators over constants are folded, and the
+//     variables holding a constant (all hold 0 until assigned) are
+//     replaced by it. A division by the constant 0 is reported
+//     here, as it would trap when run;
+//   - backwards, an assignment to a variable which is not read
+//     again before it is assigned again, or at all, is dropped
+//     if its expression has no effect;
+//   - an Eseq is flattened: its statements are lifted out of the
+//     expressions around it, where the order of the effects allows,
+//     and an Eseq whose statements were all dropped is replaced by
+//     its expression.
+//
+// The optimizer builds a new tree and leaves the one it is given as
+// it is, so the samples can be run again. Like the other walks, none
+// of these recurses.
+public class Optimizer
+{
+  static final Object EXIT = new Object();
+
+  String fname; // for diagnostics
+  CompilationContext ctx;
+
+  public Optimizer(String fname, CompilationContext ctx)
+  {
+    this.fname = fname;
+    this.ctx = ctx;
+  }
+
+  public Stm.T optimize(Stm.T prog)
+  {
+    return drop(fold(prog));
+  }
+
+  // ///////////////////////////////////////////
+  // folding constants, forwards
+
+  // the value of "e", if a constant
+  private static Integer constant(Exp.T e)
+  {
+    return e instanceof Exp.Num ? ((Exp.Num) e).num : null;
+  }
+
+  // "left op right", with as much of it done as can be, where "e"
+  // is the operator (and its place in the source)
+  private Exp.T fold(Exp.Op e, Exp.T left, Exp.T right)
+  {
+    Exp.OP_T op = e.op;
+    Integer l = constant(left);
+    Integer r = constant(right);
+
+    if (op == Exp.OP_T.DIVIDE && r != null && r == 0) {
+      this.ctx.error(this.fname, e.line, e.column, "division by zero");
+      return new Exp.Op(op, left, right, e.line, e.column);
+    }
+    if (l != null && r != null) {
+      switch (op) {
+      case ADD:
+        return new Exp.Num(l + r);
+      case SUB:
+        return new Exp.Num(l - r);
+      case TIMES:
+        return new Exp.Num(l * r);
+      case DIVIDE:
+        // this one traps on x86, so leave it to run
+        if (l != Integer.MIN_VALUE || r != -1)
+          return new Exp.Num(l / r);
+        break;
+      default:
+        new Bug();
+      }
+    }
+    // the identities which leave the other operand as it is
+    if (r != null && r == 0 && (op == Exp.OP_T.ADD || op == Exp.OP_T.SUB))
+      return left;
+    if (r != null && r == 1
+        && (op == Exp.OP_T.TIMES || op == Exp.OP_T.DIVIDE))
+      return left;
+    if (l != null && l == 0 && op == Exp.OP_T.ADD)
+      return right;
+    if (l != null && l == 1 && op == Exp.OP_T.TIMES)
+      return right;
+    return new Exp.Op(op, left, right, e.line, e.column);
+  }
+
+  // "s1; s2", where s1 may be missing
+  private static Stm.T seq(Stm.T s1, Stm.T s2)
+  {
+    return s1 == null ? s2 : new Stm.Compound(s1, s2);
+  }
+
+  // "(stm, exp)", where "stm" may be missing. The Eseqs built here
+  // never have an Eseq as their expression, so the one of an Eseq
+  // built from others is a value.
+  private static Exp.T eseq(Stm.T stm, Exp.T exp)
+  {
+    if (stm == null)
+      return exp;
+    if (exp instanceof Exp.Eseq)
+      return new Exp.Eseq(seq(stm, ((Exp.Eseq) exp).stm),
+          ((Exp.Eseq) exp).exp);
+    return new Exp.Eseq(stm, exp);
+  }
+
+  // Fold "prog", in the order it runs. Along the way, the Eseqs
+  // are lifted out of the expressions as far as the order of
+  // their effects allows, so their statements are statements of
+  // their own, and their values may be folded. A node pushes itself under
+  // an EXIT and its children, whose results are on "values" when
+  // the EXIT comes off, to make the node of the result from.
+  private Stm.T fold(Stm.T prog)
+  {
+    ArrayDeque<Object> work = new ArrayDeque<Object>();
+    ArrayList<Object> values = new ArrayList<Object>();
+    // the variables assigned so far, to the constant they hold, or
+    // to null if not a constant
+    HashMap<String, Exp.Num> env = new HashMap<String, Exp.Num>();
+
+    work.push(prog);
+    while (!work.isEmpty()) {
+      Object t = work.pop();
+
+      if (t == EXIT) {
+        t = work.pop();
+        int n = values.size();
+        if (t instanceof Exp.Op) {
+          Exp.T right = (Exp.T) values.remove(n - 1);
+          Exp.T left = (Exp.T) values.remove(n - 2);
+          // the statements of an Eseq operand run first, and may go
+          // before the operator; those of the right one may go
+          // before the left one too, if it is a constant
+          Stm.T stm = null;
+          if (left instanceof Exp.Eseq) {
+            stm = ((Exp.Eseq) left).stm;
+            left = ((Exp.Eseq) left).exp;
+          }
+          if (right instanceof Exp.Eseq && left instanceof Exp.Num) {
+            stm = seq(stm, ((Exp.Eseq) right).stm);
+            right = ((Exp.Eseq) right).exp;
+          }
+          values.add(eseq(stm, fold((Exp.Op) t, left, right)));
+        } else if (t instanceof Exp.Eseq) {
+          Exp.T exp = (Exp.T) values.remove(n - 1);
+          Stm.T stm = (Stm.T) values.remove(n - 2);
+          values.add(eseq(stm, exp));
+        } else if (t instanceof Stm.Compound) {
+          Stm.T s2 = (Stm.T) values.remove(n - 1);
+          Stm.T s1 = (Stm.T) values.remove(n - 2);
+          values.add(new Stm.Compound(s1, s2));
+        } else if (t instanceof Stm.Assign) {
+          String id = ((Stm.Assign) t).id;
+          Exp.T exp = (Exp.T) values.remove(n - 1);
+          Stm.T stm = null;
+          if (exp instanceof Exp.Eseq) {
+            stm = ((Exp.Eseq) exp).stm;
+            exp = ((Exp.Eseq) exp).exp;
+          }
+          env.put(id, exp instanceof Exp.Num ? (Exp.Num) exp : null);
+          values.add(seq(stm, new Stm.Assign(id, exp)));
+        } else if (t instanceof Stm.Print) {
+          int size = ExpList.elements(((Stm.Print) t).explist).size();
+          ExpList.T list = new ExpList.Last((Exp.T) values.remove(n - 1));
+          for (int i = 2; i <= size; i++)
+            list = new ExpList.Pair((Exp.T) values.remove(n - i), list);
+          // only the statements of the first value run before any
+          // value is printed
+          Stm.T stm = null;
+          ExpList.T first = list;
+          Exp.T e = first instanceof ExpList.Pair ? ((ExpList.Pair) first).exp
+              : ((ExpList.Last) first).exp;
+          if (e instanceof Exp.Eseq) {
+            stm = ((Exp.Eseq) e).stm;
+            if (first instanceof ExpList.Pair)
+              ((ExpList.Pair) first).exp = ((Exp.Eseq) e).exp;
+            else
+              ((ExpList.Last) first).exp = ((Exp.Eseq) e).exp;
+          }
+          values.add(seq(stm, new Stm.Print(list)));
+        } else
+          new Bug();
+      } else if (t instanceof Exp.Id) {
+        String id = ((Exp.Id) t).id;
+        Exp.Num c = env.get(id);
+        if (c != null)
+          values.add(c);
+        else
+          values.add(env.containsKey(id) ? t : new Exp.Num(0));
+      } else if (t instanceof Exp.Num)
+        values.add(t);
+      else {
+        work.push(t);
+        work.push(EXIT);
+        if (t instanceof Exp.Op) {
+          work.push(((Exp.Op) t).right);
+          work.push(((Exp.Op) t).left);
+        } else if (t instanceof Exp.Eseq) {
+          work.push(((Exp.Eseq) t).exp);
+          work.push(((Exp.Eseq) t).stm);
+        } else if (t instanceof Stm.Compound) {
+          work.push(((Stm.Compound) t).s2);
+          work.push(((Stm.Compound) t).s1);
+        } else if (t instanceof Stm.Assign)
+          work.push(((Stm.Assign) t).exp);
+        else if (t instanceof Stm.Print) {
+          ArrayList<Exp.T> exps = ExpList.elements(((Stm.Print) t).explist);
+          for (int i = exps.size() - 1; i >= 0; i--)
+            work.push(exps.get(i));
+        } else
+          new Bug();
+      }
+    }
+    return (Stm.T) values.get(0);
+  }
+
+  // ///////////////////////////////////////////
+  // dead assignments, backwards
+
+  // whether "e" only computes a value: it holds no Eseq, which may
+  // print or assign, and no division which may trap
+  private static boolean pure(Exp.T e)
+  {
+    ArrayDeque<Exp.T> work = new ArrayDeque<Exp.T>();
+
+    work.push(e);
+    while (!work.isEmpty()) {
+      Exp.T t = work.pop();
+
+      if (t instanceof Exp.Eseq)
+        return false;
+      if (t instanceof Exp.Op) {
+        Exp.Op op = (Exp.Op) t;
+        Integer r = constant(op.right);
+        if (op.op == Exp.OP_T.DIVIDE && (r == null || r == 0 || r == -1))
+          return false;
+        work.push(op.right);
+        work.push(op.left);
+      }
+    }
+    return true;
+  }
+
+  // "prog" without its dead assignments, found by walking it
+  // against the order it runs in, with the variables which are read
+  // later (the live ones): an assignment to a variable not live is
+  // dead, if dropping it drops nothing else. A node pushes itself
+  // under an EXIT and its children in the order they run, so they
+  // come off in reverse, and their results are on "values", the
+  // last one on the bottom, when the EXIT comes off. A statement
+  // dropped is null there. The tree is the optimizer's own, so it
+  // is changed in place.
+  private static Stm.T drop(Stm.T prog)
+  {
+    ArrayDeque<Object> work = new ArrayDeque<Object>();
+    ArrayList<Object> values = new ArrayList<Object>();
+    HashSet<String> live = new HashSet<String>();
+    Stm.Assign dropped = null;
+
+    work.push(prog);
+    while (!work.isEmpty()) {
+      Object t = work.pop();
+
+      if (t == EXIT) {
+        t = work.pop();
+        int n = values.size();
+        if (t instanceof Exp.Op) {
+          Exp.Op e = (Exp.Op) t;
+          e.left = (Exp.T) values.remove(n - 1);
+          e.right = (Exp.T) values.remove(n - 2);
+          values.add(e);
+        } else if (t instanceof Exp.Eseq) {
+          Exp.Eseq e = (Exp.Eseq) t;
+          e.stm = (Stm.T) values.remove(n - 1);
+          e.exp = (Exp.T) values.remove(n - 2);
+          values.add(e.stm == null ? e.exp : e);
+        } else if (t instanceof Stm.Compound) {
+          Stm.Compound s = (Stm.Compound) t;
+          s.s1 = (Stm.T) values.remove(n - 1);
+          s.s2 = (Stm.T) values.remove(n - 2);
+          values.add(s.s1 == null ? s.s2 : s.s2 == null ? s.s1 : s);
+        } else if (t instanceof Stm.Assign) {
+          ((Stm.Assign) t).exp = (Exp.T) values.remove(n - 1);
+          values.add(t);
+        } else if (t instanceof Stm.Print) {
+          ExpList.T list = ((Stm.Print) t).explist;
+          int i = n;
+          while (list instanceof ExpList.Pair) {
+            ((ExpList.Pair) list).exp = (Exp.T) values.get(--i);
+            list = ((ExpList.Pair) list).list;
+          }
+          ((ExpList.Last) list).exp = (Exp.T) values.get(--i);
+          values.subList(i, n).clear();
+          values.add(t);
+        } else
+          new Bug();
+        continue;
+      }
+
+      if (t instanceof Exp.Id) {
+        live.add(((Exp.Id) t).id);
+        values.add(t);
+        continue;
+      }
+      if (t instanceof Exp.Num) {
+        values.add(t);
+        continue;
+      }
+      if (t instanceof Stm.Assign) {
+        Stm.Assign s = (Stm.Assign) t;
+        if (!live.contains(s.id) && pure(s.exp)) {
+          dropped = s;
+          values.add(null);
+          continue;
+        }
+        live.remove(s.id);
+      }
+      work.push(t);
+      work.push(EXIT);
+      if (t instanceof Exp.Op) {
+        work.push(((Exp.Op) t).left);
+        work.push(((Exp.Op) t).right);
+      } else if (t instanceof Exp.Eseq) {
+        work.push(((Exp.Eseq) t).stm);
+        work.push(((Exp.Eseq) t).exp);
+      } else if (t instanceof Stm.Compound) {
+        work.push(((Stm.Compound) t).s1);
+        work.push(((Stm.Compound) t).s2);
+      } else if (t instanceof Stm.Assign)
+        work.push(((Stm.Assign) t).exp);
+      else if (t instanceof Stm.Print) {
+        ExpList.T list = ((Stm.Print) t).explist;
+        while (list instanceof ExpList.Pair) {
+          work.push(((ExpList.Pair) list).exp);
+          list = ((ExpList.Pair) list).list;
+        }
+        work.push(((ExpList.Last) list).exp);
+      } else
+        new Bug();
+    }
+
+    // a program all of whose statements are dead does nothing, but
+    // it must still be a statement: keep one of them
+    Stm.T result = (Stm.T) values.get(0);
+    return result != null ? result : dropped;
+  }
+}
@@ -0,0 +1,345 @@
+package slp;
+
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import slp.Lexer.Kind;
+import slp.Lexer.Token;
+import slp.Slp.Exp;
+import slp.Slp.ExpList;
+import slp.Slp.Stm;
+import util.Bug;
+import control.CompilationContext;
+
+// The parser of the concrete syntax of straight-line programs (see
+// "Lexer" for the grammar). "*" and "/" bind tighter than "+" and
+// "-", and all four associate to the left. A "(" starts an Eseq when
+// the statement after it does: on a "print", or on an id followed
+// by ":=", so the parser looks at most two tokens ahead.
+//
+// The parser does not recurse, so neither a long program nor deep
+// parentheses overflow the Java stack: each construct being parsed
+// is a frame on a stack of the parser's own, and the statements of
+// a sequence are chained on as they are parsed, so the tree grows
+// with the input. The parser stops at the first syntax error.
+public class Parser
+{
+  // the kinds of frames
+  static final int SEQ = 0; // statements, separated by ";"
+  static final int ASSIGN = 1; // id := Exp
+  static final int PRINT = 2; // print ( ExpList )
+  static final int EXP = 3; // an expression, maybe in parentheses
+
+  static class Frame
+  {
+    int kind;
+    boolean waiting; // for a child frame
+
+    // of a SEQ: the statements so far, as right-nested Compounds
+    // ending at "last", and whether they are the Stm of an Eseq
+    Stm.T first;
+    Stm.Compound last;
+    boolean eseq;
+
+    // of an ASSIGN
+    String id;
+
+    // of a PRINT
+    ArrayList<Exp.T> exps;
+
+    // of an EXP: where its operators not yet applied start on the
+    // stack of them, and whether it ends at a ")"
+    int base;
+    boolean paren;
+
+    Frame(int kind)
+    {
+      this.kind = kind;
+    }
+  }
+
+  // thrown at the first syntax error, to unwind the parser
+  @SuppressWarnings("serial")
+  static class Abort extends RuntimeException
+  {
+    Abort()
+    {
+      super(null, null, false, false);
+    }
+  }
+
+  String fname;
+  CompilationContext ctx;
+  Lexer lexer;
+  Token current;
+  Token next; // the token after "current", if looked at
+  // the operands and the operators not yet applied (as their
+  // tokens, which say where they are), of all the EXP frames, each
+  // above those of the frame below it
+  ArrayList<Exp.T> operands;
+  ArrayList<Token> operators;
+
+  public Parser(String fname, InputStream in, CompilationContext ctx)
+  {
+    this.fname = fname;
+    this.ctx = ctx;
+    this.lexer = new Lexer(fname, in, ctx);
+    this.current = this.lexer.nextToken();
+    this.next = null;
+    this.operands = new ArrayList<Exp.T>();
+    this.operators = new ArrayList<Token>();
+  }
+
+  // ///////////////////////////////////////////
+  // tokens
+
+  private void advance()
+  {
+    if (this.next != null) {
+      this.current = this.next;
+      this.next = null;
+    } else
+      this.current = this.lexer.nextToken();
+    return;
+  }
+
+  private Token lookahead()
+  {
+    if (this.next == null)
+      this.next = this.lexer.nextToken();
+    return this.next;
+  }
+
+  private void eat(Kind kind)
+  {
+    if (this.current.kind != kind)
+      error(kind.text);
+    advance();
+    return;
+  }
+
+  private void error(String expected)
+  {
+    this.ctx.error(this.fname, this.current.line, this.current.column,
+        "syntax error: expected " + expected + ", but found "
+            + this.current);
+    throw new Abort();
+  }
+
+  // ///////////////////////////////////////////
+  // frames
+
+  private static Frame seq(boolean eseq)
+  {
+    Frame f = new Frame(SEQ);
+    f.eseq = eseq;
+    return f;
+  }
+
+  private Frame exp(boolean paren)
+  {
+    Frame f = new Frame(EXP);
+    f.base = this.operators.size();
+    f.paren = paren;
+    return f;
+  }
+
+  // add "s" to the end of the statements of "f"
+  private static void append(Frame f, Stm.T s)
+  {
+    if (f.first == null)
+      f.first = s;
+    else if (f.last == null) {
+      f.last = new Stm.Compound(f.first, s);
+      f.first = f.last;
+    } else {
+      Stm.Compound c = new Stm.Compound(f.last.s2, s);
+      f.last.s2 = c;
+      f.last = c;
+    }
+    return;
+  }
+
+  // the operator of a token, or null if it is not one
+  private static Exp.OP_T operator(Kind kind)
+  {
+    switch (kind) {
+    case PLUS:
+      return Exp.OP_T.ADD;
+    case MINUS:
+      return Exp.OP_T.SUB;
+    case TIMES:
+      return Exp.OP_T.TIMES;
+    case DIVIDE:
+      return Exp.OP_T.DIVIDE;
+    default:
+      return null;
+    }
+  }
+
+  private static int precedence(Token op)
+  {
+    return op.kind == Kind.PLUS || op.kind == Kind.MINUS ? 0 : 1;
+  }
+
+  // apply the last operator to the last two operands
+  private void reduce()
+  {
+    int n = this.operands.size();
+    Exp.T right = this.operands.remove(n - 1);
+    Exp.T left = this.operands.get(n - 2);
+    Token op = this.operators.remove(this.operators.size() - 1);
+    this.operands.set(n - 2, new Exp.Op(operator(op.kind), left, right,
+        op.line, op.column));
+    return;
+  }
+
+  // ///////////////////////////////////////////
+  // parsing
+
+  // Parse the whole input, or return null after a syntax error, or
+  // after a lexical one.
+  public Stm.T parse()
+  {
+    try {
+      Stm.T prog = parseProgram();
+      return this.ctx.hasErrors() ? null : prog;
+    } catch (Abort e) {
+      return null;
+    }
+  }
+
+  private Stm.T parseProgram()
+  {
+    ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+    Object done = null; // what the frame popped last built
+
+    frames.push(seq(false));
+    for (;;) {
+      Frame f = frames.peek();
+
+      switch (f.kind) {
+      case SEQ:
+        if (f.waiting && done instanceof Stm.T) {
+          append(f, (Stm.T) done);
+          f.waiting = false;
+          done = null;
+          if (this.current.kind == Kind.SEMI) {
+            advance();
+            // a ";" may end the program
+            if (!f.eseq && this.current.kind == Kind.EOF)
+              return f.first;
+          } else if (f.eseq) {
+            eat(Kind.COMMA);
+            f.waiting = true;
+            frames.push(exp(false));
+            continue;
+          } else if (this.current.kind == Kind.EOF)
+            return f.first;
+          else
+            error(Kind.SEMI.text);
+        } else if (f.waiting) {
+          // the Exp of an Eseq
+          eat(Kind.RPAREN);
+          frames.pop();
+          done = new Exp.Eseq(f.first, (Exp.T) done);
+          continue;
+        }
+
+        // a statement
+        f.waiting = true;
+        if (this.current.kind == Kind.ID) {
+          Frame a = new Frame(ASSIGN);
+          a.id = this.current.id;
+          advance();
+          eat(Kind.ASSIGN);
+          a.waiting = true;
+          frames.push(a);
+          frames.push(exp(false));
+        } else if (this.current.kind == Kind.PRINT) {
+          advance();
+          eat(Kind.LPAREN);
+          Frame p = new Frame(PRINT);
+          p.exps = new ArrayList<Exp.T>();
+          p.waiting = true;
+          frames.push(p);
+          frames.push(exp(false));
+        } else
+          error("a statement");
+        break;
+
+      case ASSIGN:
+        frames.pop();
+        done = new Stm.Assign(f.id, (Exp.T) done);
+        break;
+
+      case PRINT:
+        f.exps.add((Exp.T) done);
+        done = null;
+        if (this.current.kind == Kind.COMMA) {
+          advance();
+          frames.push(exp(false));
+          break;
+        }
+        eat(Kind.RPAREN);
+        frames.pop();
+        ExpList.T list = new ExpList.Last(f.exps.get(f.exps.size() - 1));
+        for (int i = f.exps.size() - 2; i >= 0; i--)
+          list = new ExpList.Pair(f.exps.get(i), list);
+        done = new Stm.Print(list);
+        break;
+
+      case EXP:
+        if (f.waiting) {
+          // the operand in parentheses
+          this.operands.add((Exp.T) done);
+          f.waiting = false;
+          done = null;
+        } else {
+          // an operand
+          if (this.current.kind == Kind.ID) {
+            this.operands.add(new Exp.Id(this.current.id));
+            advance();
+          } else if (this.current.kind == Kind.NUM) {
+            this.operands.add(new Exp.Num(this.current.num));
+            advance();
+          } else if (this.current.kind == Kind.LPAREN) {
+            advance();
+            f.waiting = true;
+            if (this.current.kind == Kind.PRINT
+                || (this.current.kind == Kind.ID
+                    && lookahead().kind == Kind.ASSIGN))
+              frames.push(seq(true));
+            else
+              frames.push(exp(true));
+            break;
+          } else
+            error("an expression");
+        }
+
+        // an operator, or the end of the expression
+        if (operator(this.current.kind) != null) {
+          Token op = this.current;
+          while (this.operators.size() > f.base
+              && precedence(this.operators.get(this.operators.size() - 1))
+                  >= precedence(op))
+            reduce();
+          this.operators.add(op);
+          advance();
+          break;
+        }
+        while (this.operators.size() > f.base)
+          reduce();
+        if (f.paren)
+          eat(Kind.RPAREN);
+        frames.pop();
+        done = this.operands.remove(this.operands.size() - 1);
+        break;
+
+      default:
+        new Bug();
+      }
+    }
+  }
+}
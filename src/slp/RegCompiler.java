@@ -0,0 +1,493 @@
+package slp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+import slp.Slp.Exp;
+import slp.Slp.ExpList;
+import slp.Slp.Stm;
+import util.Bug;
+
+// A compiler of straight-line programs to x86 code that keeps the
+// values in registers, instead of pushing every operand (as the
+// compiler in "Main" does):
+//
+//   - the variables used most are kept in the callee-saved
+//     registers %ebx, %esi and %edi (which the runtime preserves), the
+//     others in memory;
+//   - the temporaries are allocated from %eax, %ecx and %edx, and
+//     the operands of an operator are evaluated in the order of
+//     their Sethi-Ullman numbers, so as few registers as possible
+//     are needed; a value is spilled (pushed) only when all three
+//     are in use;
+//   - a number or a variable as the right operand of an operator
+//     is used in place, with no register.
+//
+// An expression with an Eseq in it may assign variables and call
+// the runtime to print, which clobbers the temporaries. Such an expression is
+// "impure": it is evaluated left to right, and with no temporary
+// live, so whatever it clobbers is on the stack.
+public class RegCompiler
+{
+  static final String[] TEMPS = { "%eax", "%ecx", "%edx" };
+  static final String[] SAVED = { "%ebx", "%esi", "%edi" };
+  static final int IMPURE = Integer.MAX_VALUE;
+  static final String TOP = "(%esp)"; // a spilled right operand
+
+  HashSet<String> ids; // the variables in memory
+  AsmWriter out;
+  HashMap<String, String> regs; // the variables in registers
+  IdentityHashMap<Exp.T, Integer> needs; // of the operators
+  ArrayDeque<String> free; // temporaries
+
+  public RegCompiler(HashSet<String> ids, AsmWriter out)
+  {
+    this.ids = ids;
+    this.out = out;
+    this.regs = new HashMap<String, String>();
+    this.needs = new IdentityHashMap<Exp.T, Integer>();
+    this.free = new ArrayDeque<String>();
+    for (String r : TEMPS)
+      this.free.add(r);
+  }
+
+  private void emit(String s)
+  {
+    out.write(s);
+    return;
+  }
+
+  // ///////////////////////////////////////////
+  // The programs may be generated, and chain a million statements
+  // or operators, so none of the walks below recurses: each keeps
+  // its work on a stack of its own.
+
+  // ///////////////////////////////////////////
+  // variables
+
+  // the number of uses of each variable of "prog"
+  private HashMap<String, Integer> count(Stm.T prog)
+  {
+    HashMap<String, Integer> uses = new HashMap<String, Integer>();
+    ArrayDeque<Object> work = new ArrayDeque<Object>();
+
+    work.push(prog);
+    while (!work.isEmpty()) {
+      Object t = work.pop();
+      if (t instanceof Exp.Id)
+        uses.merge(((Exp.Id) t).id, 1, Integer::sum);
+      else if (t instanceof Stm.Assign) {
+        uses.merge(((Stm.Assign) t).id, 1, Integer::sum);
+        work.push(((Stm.Assign) t).exp);
+      } else
+        children(t, work);
+    }
+    return uses;
+  }
+
+  // push the children of "t" (but an assigned variable), in reverse
+  private static void children(Object t, ArrayDeque<Object> work)
+  {
+    if (t instanceof Exp.Op) {
+      work.push(((Exp.Op) t).right);
+      work.push(((Exp.Op) t).left);
+    } else if (t instanceof Exp.Eseq) {
+      work.push(((Exp.Eseq) t).exp);
+      work.push(((Exp.Eseq) t).stm);
+    } else if (t instanceof Stm.Compound) {
+      work.push(((Stm.Compound) t).s2);
+      work.push(((Stm.Compound) t).s1);
+    } else if (t instanceof Stm.Assign)
+      work.push(((Stm.Assign) t).exp);
+    else if (t instanceof Stm.Print) {
+      ArrayList<Exp.T> exps = ExpList.elements(((Stm.Print) t).explist);
+      for (int i = exps.size() - 1; i >= 0; i--)
+        work.push(exps.get(i));
+    } else if (!(t instanceof Exp.Id || t instanceof Exp.Num))
+      new Bug();
+    return;
+  }
+
+  // the register or the memory of the variable "id"
+  private String var(String id)
+  {
+    String r = this.regs.get(id);
+
+    if (r != null)
+      return r;
+    this.ids.add(id);
+    return Main.label(id);
+  }
+
+  // ///////////////////////////////////////////
+  // Sethi-Ullman numbers
+
+  static final Object EXIT = new Object(); // under it, a numbered Op
+
+  private static boolean leaf(Exp.T exp)
+  {
+    return exp instanceof Exp.Id || exp instanceof Exp.Num;
+  }
+
+  // The registers needed to evaluate "exp" with no spilling, or
+  // IMPURE. A leaf as a right operand needs none.
+  private int need(Exp.T exp)
+  {
+    if (leaf(exp))
+      return 1;
+    if (exp instanceof Exp.Eseq)
+      return IMPURE;
+    Integer n = this.needs.get(exp);
+    if (n == null)
+      new Bug();
+    return n;
+  }
+
+  // number all the operators of "prog", children first
+  private void number(Stm.T prog)
+  {
+    ArrayDeque<Object> work = new ArrayDeque<Object>();
+
+    work.push(prog);
+    while (!work.isEmpty()) {
+      Object t = work.pop();
+      if (t == EXIT) {
+        Exp.Op e = (Exp.Op) work.pop();
+        int l1 = need(e.left);
+        int l2 = leaf(e.right) ? 0 : need(e.right);
+        int n;
+        if (l1 == IMPURE || l2 == IMPURE)
+          n = IMPURE;
+        else
+          n = l1 == l2 ? l1 + 1 : Math.max(l1, l2);
+        this.needs.put(e, n);
+      } else {
+        if (t instanceof Exp.Op) {
+          work.push(t);
+          work.push(EXIT);
+        }
+        children(t, work);
+      }
+    }
+    return;
+  }
+
+  // ///////////////////////////////////////////
+  // expressions
+
+  private String alloc()
+  {
+    if (this.free.isEmpty())
+      new Bug();
+    return this.free.pop();
+  }
+
+  private void release(String r)
+  {
+    this.free.push(r);
+    return;
+  }
+
+  // the operand for a leaf, in place
+  private String operand(Exp.T exp)
+  {
+    if (exp instanceof Exp.Num)
+      return "$" + ((Exp.Num) exp).num;
+    return var(((Exp.Id) exp).id);
+  }
+
+  // the orders to evaluate the operands of an operator in
+  static final int LEAF = 0; // the left, then the right in place
+  static final int IMPURE_RIGHT = 1; // the left on the stack
+  static final int LEFT_FIRST = 2;
+  static final int RIGHT_FIRST = 3;
+  static final int SPILL = 4; // the right on the stack
+
+  // an operator being evaluated: how far, and in which order
+  static class Frame
+  {
+    Exp.Op e;
+    int order;
+    int step;
+    String rl;
+    String rr;
+
+    Frame(Exp.Op e)
+    {
+      this.e = e;
+      this.step = 0;
+    }
+  }
+
+  String result; // the temporary of the last expression evaluated
+
+  // Evaluate a leaf into a fresh temporary. There is always a
+  // temporary free on entry.
+  private void load(Exp.T exp)
+  {
+    String r = alloc();
+
+    if (exp instanceof Exp.Num) {
+      int num = ((Exp.Num) exp).num;
+      if (num == 0)
+        emit("\txorl\t" + r + ", " + r + "\n");
+      else
+        emit("\tmovl\t$" + num + ", " + r + "\n");
+    } else
+      emit("\tmovl\t" + var(((Exp.Id) exp).id) + ", " + r + "\n");
+    this.result = r;
+    return;
+  }
+
+  // Take the next step of the operator of "f": evaluate an operand
+  // (by pushing it, over "f"), or compute the operator once the
+  // operands are in "result" or in "f".
+  private void step(Frame f, ArrayDeque<Object> work)
+  {
+    Exp.Op e = f.e;
+
+    switch (f.step++) {
+    case 0:
+      if (leaf(e.right))
+        f.order = LEAF;
+      else if (need(e.right) == IMPURE)
+        f.order = IMPURE_RIGHT;
+      else {
+        int free = this.free.size();
+        int l1 = need(e.left);
+        int l2 = need(e.right);
+        if (l1 == IMPURE || (l1 >= l2 && l2 < free))
+          f.order = LEFT_FIRST; // an impure left operand always
+        else if (l2 > l1 && l1 < free)
+          f.order = RIGHT_FIRST;
+        else
+          f.order = SPILL; // both need all the registers
+      }
+      work.push(f);
+      if (f.order == RIGHT_FIRST || f.order == SPILL)
+        work.push(e.right);
+      else
+        work.push(e.left);
+      break;
+    case 1:
+      switch (f.order) {
+      case LEAF:
+        op(e.op, operand(e.right), this.result);
+        return;
+      case IMPURE_RIGHT:
+        // keep the left value on the stack over the right one
+        emit("\tpushl\t" + this.result + "\n");
+        release(this.result);
+        work.push(f);
+        work.push(e.right);
+        break;
+      case LEFT_FIRST:
+        f.rl = this.result;
+        work.push(f);
+        work.push(e.right);
+        break;
+      case RIGHT_FIRST:
+        f.rr = this.result;
+        work.push(f);
+        work.push(e.left);
+        break;
+      case SPILL:
+        emit("\tpushl\t" + this.result + "\n");
+        release(this.result);
+        work.push(f);
+        work.push(e.left);
+        break;
+      default:
+        new Bug();
+      }
+      break;
+    case 2:
+      switch (f.order) {
+      case IMPURE_RIGHT:
+        f.rr = this.result;
+        f.rl = alloc();
+        emit("\tpopl\t" + f.rl + "\n");
+        release(f.rr);
+        op(e.op, f.rr, f.rl);
+        break;
+      case LEFT_FIRST:
+        release(this.result);
+        op(e.op, this.result, f.rl);
+        break;
+      case RIGHT_FIRST:
+        f.rl = this.result;
+        release(f.rr);
+        op(e.op, f.rr, f.rl);
+        break;
+      case SPILL:
+        f.rl = this.result;
+        op(e.op, TOP, f.rl);
+        emit("\taddl\t$4, %esp\n");
+        break;
+      default:
+        new Bug();
+      }
+      this.result = f.rl;
+      break;
+    default:
+      new Bug();
+    }
+    return;
+  }
+
+  // rl := rl op src. The register of "src" (if any) is already
+  // released.
+  private void op(Exp.OP_T op, String src, String rl)
+  {
+    switch (op) {
+    case ADD:
+      emit("\taddl\t" + src + ", " + rl + "\n");
+      break;
+    case SUB:
+      emit("\tsubl\t" + src + ", " + rl + "\n");
+      break;
+    case TIMES:
+      emit("\timull\t" + src + ", " + rl + "\n");
+      break;
+    case DIVIDE:
+      divide(src, rl);
+      break;
+    default:
+      new Bug();
+    }
+    return;
+  }
+
+  // "idivl" divides %edx:%eax, and leaves the quotient in %eax:
+  // the live temporaries there are saved around it, and the divisor
+  // goes to the stack unless it can be used in place.
+  private void divide(String src, String rl)
+  {
+    ArrayList<String> saved = new ArrayList<String>();
+    for (String r : new String[] { "%eax", "%edx" })
+      if (!r.equals(rl) && !this.free.contains(r)) {
+        emit("\tpushl\t" + r + "\n");
+        saved.add(r);
+      }
+
+    String divisor = src;
+    boolean pushed = false;
+    if (src.equals(TOP))
+      divisor = (4 * saved.size()) + "(%esp)";
+    else if (src.startsWith("$") || src.equals("%eax") || src.equals("%edx")) {
+      emit("\tpushl\t" + src + "\n");
+      divisor = TOP;
+      pushed = true;
+    }
+    if (!rl.equals("%eax"))
+      emit("\tmovl\t" + rl + ", %eax\n");
+    emit("\tcltd\n");
+    emit("\tidivl\t" + divisor + "\n");
+    if (pushed)
+      emit("\taddl\t$4, %esp\n");
+    if (!rl.equals("%eax"))
+      emit("\tmovl\t%eax, " + rl + "\n");
+    for (int i = saved.size() - 1; i >= 0; i--)
+      emit("\tpopl\t" + saved.get(i) + "\n");
+    return;
+  }
+
+  // ///////////////////////////////////////////
+  // statements
+
+  // the code to print "src", with the runtime (see "SlpRuntime")
+  private static String print(String src)
+  {
+    String call = "\tcall\tslp_print\n";
+    if (src.equals("%eax"))
+      return call;
+    return "\tmovl\t" + src + ", %eax\n" + call;
+  }
+
+  // Compile "prog". On the work stack are the nodes to compile, the
+  // frames of the operators being evaluated, strings to emit, and
+  // Runnables for what to do with the value of an expression.
+  private void compileStm(Stm.T prog)
+  {
+    ArrayDeque<Object> work = new ArrayDeque<Object>();
+
+    work.push(prog);
+    while (!work.isEmpty()) {
+      Object t = work.pop();
+
+      if (t instanceof String)
+        emit((String) t);
+      else if (t instanceof Runnable)
+        ((Runnable) t).run();
+      else if (t instanceof Frame)
+        step((Frame) t, work);
+      else if (t instanceof Exp.Op)
+        step(new Frame((Exp.Op) t), work);
+      else if (t instanceof Exp.Id || t instanceof Exp.Num)
+        load((Exp.T) t);
+      else if (t instanceof Exp.Eseq) {
+        // nothing is live here (see above)
+        work.push(((Exp.Eseq) t).exp);
+        work.push(((Exp.Eseq) t).stm);
+      } else if (t instanceof Stm.Compound) {
+        work.push(((Stm.Compound) t).s2);
+        work.push(((Stm.Compound) t).s1);
+      } else if (t instanceof Stm.Assign) {
+        Stm.Assign s = (Stm.Assign) t;
+        String dst = var(s.id);
+
+        if (s.exp instanceof Exp.Num)
+          emit("\tmovl\t$" + ((Exp.Num) s.exp).num + ", " + dst + "\n");
+        else {
+          work.push((Runnable) () -> {
+            emit("\tmovl\t" + this.result + ", " + dst + "\n");
+            release(this.result);
+          });
+          work.push(s.exp);
+        }
+      } else if (t instanceof Stm.Print) {
+        ArrayList<Exp.T> exps = ExpList.elements(((Stm.Print) t).explist);
+
+        work.push("\tcall\tslp_newline\n");
+        for (int i = exps.size() - 1; i >= 0; i--) {
+          Exp.T exp = exps.get(i);
+          if (leaf(exp))
+            work.push(print(operand(exp)));
+          else {
+            work.push((Runnable) () -> {
+              emit(print(this.result));
+              release(this.result);
+            });
+            work.push(exp);
+          }
+        }
+      } else
+        new Bug();
+    }
+    return;
+  }
+
+  // Compile "prog" into the body of "main": the callee-saved
+  // registers it uses are saved first and restored last.
+  public void compile(Stm.T prog)
+  {
+    HashMap<String, Integer> uses = count(prog);
+    ArrayList<String> vars = new ArrayList<String>(uses.keySet());
+    vars.sort((a, b) -> uses.get(b) - uses.get(a));
+    for (int i = 0; i < SAVED.length && i < vars.size(); i++)
+      this.regs.put(vars.get(i), SAVED[i]);
+    number(prog);
+
+    for (int i = 0; i < this.regs.size(); i++)
+      emit("\tpushl\t" + SAVED[i] + "\n");
+    for (int i = 0; i < this.regs.size(); i++)
+      emit("\txorl\t" + SAVED[i] + ", " + SAVED[i] + "\n");
+    compileStm(prog);
+    for (int i = this.regs.size() - 1; i >= 0; i--)
+      emit("\tpopl\t" + SAVED[i] + "\n");
+    return;
+  }
+}
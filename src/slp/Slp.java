@@ -1,6 +1,6 @@
 package slp;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 
 public class Slp
 {
@@ -46,12 +46,23 @@ public class Slp
       OP_T op;
       public T left;
       public T right;
+      // where the operator is in the source, for the diagnostics,
+      // or 0 if the tree was not parsed
+      public int line;
+      public int column;
 
       public Op(OP_T op, T left, T right)
+      {
+        this(op, left, right, 0, 0);
+      }
+
+      public Op(OP_T op, T left, T right, int line, int column)
       {
         this.op = op;
         this.left = left;
         this.right = right;
+        this.line = line;
+        this.column = column;
       }
     }
 
@@ -103,6 +114,19 @@ public class Slp
         this.exp = exp;
       }
     }
+
+    // the expressions of "list", in order
+    public static ArrayList<Exp.T> elements(T list)
+    {
+      ArrayList<Exp.T> exps = new ArrayList<Exp.T>();
+
+      while (list instanceof Pair) {
+        exps.add(((Pair) list).exp);
+        list = ((Pair) list).list;
+      }
+      exps.add(((Last) list).exp);
+      return exps;
+    }
   }// end of explist
 
   // ///////////////////////////////////////////////
@@ -0,0 +1,115 @@
+package slp;
+
+// The runtime of the compiled straight-line programs, in x86
+// assembly, which the code generators emit after the program, so
+// the code is all in one file (or one pipe) for gcc. It prints
+// into a buffer of its own, and writes the buffer out (with the
+// libc "write") when it fills, and at the end of "main", so a
+// program of many prints makes few system calls. Each value is
+// converted by hand, with a multiplication by the inverse of 10 in
+// place of each division, instead of by "printf" parsing "%d":
+//
+//   slp_print     print the value in %eax, followed by a blank
+//   slp_newline   end a line
+//   slp_flush     write out the buffer
+//
+// Each clobbers %eax, %ecx and %edx only, as "printf" may, and
+// preserves the callee-saved registers the code keeps variables
+// in.
+public class SlpRuntime
+{
+  static final int SIZE = 1 << 16; // of the buffer
+
+  public static final String CODE = ""
+      + "\n# the runtime\n\n"
+      + "\t.text\n"
+      + "slp_print:\n"
+      + "\tpushl\t%edi\n"
+      + "\tmovl\tslp_len, %edi\n"
+      // room for a sign, 10 digits and a blank
+      + "\tcmpl\t$" + (SIZE - 12) + ", %edi\n"
+      + "\tjbe\t1f\n"
+      + "\tpushl\t%eax\n"
+      + "\tcall\tslp_flush\n"
+      + "\tpopl\t%eax\n"
+      + "\txorl\t%edi, %edi\n"
+      + "1:\taddl\t$slp_buf, %edi\n"
+      + "\ttestl\t%eax, %eax\n"
+      + "\tjns\t2f\n"
+      + "\tmovb\t$45, (%edi)\n" // '-'
+      + "\tincl\t%edi\n"
+      // as unsigned, the negation of the least int is right
+      + "\tnegl\t%eax\n"
+      // the number of digits, less one, in %ecx
+      + "2:\txorl\t%ecx, %ecx\n"
+      + "3:\tcmpl\tslp_pow10(,%ecx,4), %eax\n"
+      + "\tjb\t4f\n"
+      + "\tincl\t%ecx\n"
+      + "\tcmpl\t$9, %ecx\n"
+      + "\tjb\t3b\n"
+      // the digits, from the last one back
+      + "4:\tleal\t1(%edi,%ecx), %edi\n"
+      + "\tmovb\t$32, (%edi)\n" // ' '
+      + "\tpushl\t%edi\n"
+      + "5:\tmovl\t%eax, %ecx\n"
+      + "\tmovl\t$0xcccccccd, %edx\n"
+      + "\tmull\t%edx\n"
+      + "\tshrl\t$3, %edx\n" // the quotient by 10
+      + "\tmovl\t%edx, %eax\n"
+      + "\tleal\t(%edx,%edx,4), %edx\n"
+      + "\taddl\t%edx, %edx\n"
+      + "\tsubl\t%edx, %ecx\n" // the remainder
+      + "\taddb\t$48, %cl\n" // '0'
+      + "\tdecl\t%edi\n"
+      + "\tmovb\t%cl, (%edi)\n"
+      + "\ttestl\t%eax, %eax\n"
+      + "\tjnz\t5b\n"
+      + "\tpopl\t%edi\n"
+      + "\tincl\t%edi\n"
+      + "\tsubl\t$slp_buf, %edi\n"
+      + "\tmovl\t%edi, slp_len\n"
+      + "\tpopl\t%edi\n"
+      + "\tret\n\n"
+
+      + "slp_newline:\n"
+      + "\tmovl\tslp_len, %eax\n"
+      + "\tcmpl\t$" + SIZE + ", %eax\n"
+      + "\tjb\t1f\n"
+      + "\tcall\tslp_flush\n"
+      + "\txorl\t%eax, %eax\n"
+      + "1:\tmovb\t$10, slp_buf(%eax)\n"
+      + "\tincl\t%eax\n"
+      + "\tmovl\t%eax, slp_len\n"
+      + "\tret\n\n"
+
+      // write(1, slp_buf, slp_len), till all is written, or it fails
+      + "slp_flush:\n"
+      + "\tpushl\t%ebx\n"
+      + "\txorl\t%ebx, %ebx\n"
+      + "1:\tmovl\tslp_len, %eax\n"
+      + "\tsubl\t%ebx, %eax\n"
+      + "\tjle\t2f\n"
+      + "\tpushl\t%eax\n"
+      + "\tleal\tslp_buf(%ebx), %eax\n"
+      + "\tpushl\t%eax\n"
+      + "\tpushl\t$1\n"
+      + "\tcall\twrite\n"
+      + "\taddl\t$12, %esp\n"
+      + "\ttestl\t%eax, %eax\n"
+      + "\tjle\t2f\n"
+      + "\taddl\t%eax, %ebx\n"
+      + "\tjmp\t1b\n"
+      + "2:\tmovl\t$0, slp_len\n"
+      + "\tpopl\t%ebx\n"
+      + "\tret\n\n"
+
+      + "\t.data\n"
+      + "slp_len:\n"
+      + "\t.int 0\n"
+      + "slp_pow10:\n"
+      + "\t.int 10, 100, 1000, 10000, 100000, 1000000, 10000000\n"
+      + "\t.int 100000000, 1000000000\n"
+      + "\t.lcomm slp_buf, " + SIZE + "\n"
+      // the stack need not be executable
+      + "\t.section .note.GNU-stack,\"\",@progbits\n";
+}
@@ -0,0 +1,296 @@
+package slp;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import slp.Slp.Exp;
+import slp.Slp.ExpList;
+import slp.Slp.Stm;
+import util.Bug;
+
+// A stack machine for straight-line programs. A program is first
+// compiled to a flat int[] code, with each variable resolved to a
+// slot of an int[] frame, then run by one switch loop over an int[]
+// operand stack. This saves the tree interpreter of "Main" its
+// instanceof tests and its lookups of variables by name, for each
+// node it runs. The right operand of most operators is a number or
+// a variable, so those operators carry it, which saves dispatching
+// on a PUSH or a LOAD.
+//
+// An instruction is an opcode, followed by its operand if any:
+//
+//   PUSH n     push the number n
+//   LOAD x     push the variable in slot x
+//   STORE x    pop into the variable in slot x
+//   ADD, SUB, TIMES, DIVIDE
+//              pop the right operand, then the left, push the result
+//   ADDN n, SUBN n, TIMESN n, DIVIDEN n
+//              the same, with the number n as the right operand
+//   ADDV x, SUBV x, TIMESV x, DIVIDEV x
+//              the same, with the variable in slot x as the right
+//              operand
+//   PRINT      pop a value and print it, followed by a blank
+//   NEWLINE    end a line of output
+//   HALT
+public class Vm
+{
+  static final int PUSH = 0;
+  static final int LOAD = 1;
+  static final int STORE = 2;
+  static final int ADD = 3;
+  static final int SUB = 4;
+  static final int TIMES = 5;
+  static final int DIVIDE = 6;
+  static final int PRINT = 7;
+  static final int NEWLINE = 8;
+  static final int HALT = 9;
+  static final int ADDN = 10;
+  static final int SUBN = 11;
+  static final int TIMESN = 12;
+  static final int DIVIDEN = 13;
+  static final int ADDV = 14;
+  static final int SUBV = 15;
+  static final int TIMESV = 16;
+  static final int DIVIDEV = 17;
+
+  // the change each instruction makes to the depth of the stack
+  static final int[] DELTA = { 1, 1, -1, -1, -1, -1, -1, -1, 0, 0, 0, 0, 0,
+      0, 0, 0, 0, 0 };
+
+  int[] code;
+  int size; // of the code
+  HashMap<String, Integer> slots;
+  int depth; // of the operand stack, while compiling
+  int maxDepth;
+  // the divisions, by where their instructions end: where the
+  // program counter is when one divides by zero
+  HashMap<Integer, Exp.Op> divisions;
+
+  // on the work stack of "compileStm()", after the instruction of
+  // the division "op"
+  static class Division
+  {
+    Exp.Op op;
+
+    Division(Exp.Op op)
+    {
+      this.op = op;
+    }
+  }
+
+  public Vm(Stm.T prog)
+  {
+    this.code = new int[1024];
+    this.size = 0;
+    this.slots = new HashMap<String, Integer>();
+    this.depth = 0;
+    this.maxDepth = 0;
+    this.divisions = new HashMap<Integer, Exp.Op>();
+    compileStm(prog);
+    emit(HALT);
+  }
+
+  // ///////////////////////////////////////////
+  // compiling
+
+  private void emit(int op)
+  {
+    if (this.size + 2 > this.code.length)
+      this.code = Arrays.copyOf(this.code, 2 * this.code.length);
+    this.code[this.size++] = op;
+    this.depth += DELTA[op];
+    if (this.depth > this.maxDepth)
+      this.maxDepth = this.depth;
+    return;
+  }
+
+  private void emit(int op, int operand)
+  {
+    emit(op);
+    this.code[this.size++] = operand;
+    return;
+  }
+
+  private int slot(String id)
+  {
+    Integer x = this.slots.get(id);
+
+    if (x == null) {
+      x = this.slots.size();
+      this.slots.put(id, x);
+    }
+    return x;
+  }
+
+  // Compile "prog" with a work stack, not recursively, so the depth
+  // of the tree does not matter: a node pushes its children (in
+  // reverse), and in between them, the instructions to emit, as
+  // int[]s.
+  private void compileStm(Stm.T prog)
+  {
+    ArrayDeque<Object> work = new ArrayDeque<Object>();
+
+    work.push(prog);
+    while (!work.isEmpty()) {
+      Object t = work.pop();
+
+      if (t instanceof int[]) {
+        int[] i = (int[]) t;
+        if (i.length == 1)
+          emit(i[0]);
+        else
+          emit(i[0], i[1]);
+      } else if (t instanceof Division)
+        this.divisions.put(this.size, ((Division) t).op);
+      else if (t instanceof Exp.Id)
+        emit(LOAD, slot(((Exp.Id) t).id));
+      else if (t instanceof Exp.Num)
+        emit(PUSH, ((Exp.Num) t).num);
+      else if (t instanceof Exp.Op) {
+        Exp.Op e = (Exp.Op) t;
+        int op = ADD;
+        switch (e.op) {
+        case ADD:
+          op = ADD;
+          break;
+        case SUB:
+          op = SUB;
+          break;
+        case TIMES:
+          op = TIMES;
+          break;
+        case DIVIDE:
+          op = DIVIDE;
+          break;
+        default:
+          new Bug();
+        }
+        if (op == DIVIDE)
+          work.push(new Division(e));
+        if (e.right instanceof Exp.Num)
+          work.push(new int[] { op - ADD + ADDN, ((Exp.Num) e.right).num });
+        else if (e.right instanceof Exp.Id)
+          work.push(new int[] { op - ADD + ADDV, slot(((Exp.Id) e.right).id) });
+        else {
+          work.push(new int[] { op });
+          work.push(e.right);
+        }
+        work.push(e.left);
+      } else if (t instanceof Exp.Eseq) {
+        work.push(((Exp.Eseq) t).exp);
+        work.push(((Exp.Eseq) t).stm);
+      } else if (t instanceof Stm.Compound) {
+        work.push(((Stm.Compound) t).s2);
+        work.push(((Stm.Compound) t).s1);
+      } else if (t instanceof Stm.Assign) {
+        work.push(new int[] { STORE, slot(((Stm.Assign) t).id) });
+        work.push(((Stm.Assign) t).exp);
+      } else if (t instanceof Stm.Print) {
+        ArrayList<Exp.T> exps = ExpList.elements(((Stm.Print) t).explist);
+
+        work.push(new int[] { NEWLINE });
+        for (int i = exps.size() - 1; i >= 0; i--) {
+          work.push(new int[] { PRINT });
+          work.push(exps.get(i));
+        }
+      } else
+        new Bug();
+    }
+    return;
+  }
+
+  // ///////////////////////////////////////////
+  // running
+
+  // Run the program, printing to "out". The output is buffered,
+  // and goes out when the buffer fills, and at the end. A division
+  // by zero stops the program with a DivisionByZero, as in the tree
+  // interpreter.
+  public void run(PrintStream out)
+  {
+    int[] code = this.code;
+    int[] stack = new int[this.maxDepth + 1];
+    int[] vars = new int[this.slots.size()];
+    StringBuilder buf = new StringBuilder(1 << 16);
+    int pc = 0;
+    int sp = 0;
+
+    try {
+      for (;;) {
+        switch (code[pc++]) {
+        case PUSH:
+          stack[sp++] = code[pc++];
+          break;
+        case LOAD:
+          stack[sp++] = vars[code[pc++]];
+          break;
+        case STORE:
+          vars[code[pc++]] = stack[--sp];
+          break;
+        case ADD:
+          sp--;
+          stack[sp - 1] += stack[sp];
+          break;
+        case SUB:
+          sp--;
+          stack[sp - 1] -= stack[sp];
+          break;
+        case TIMES:
+          sp--;
+          stack[sp - 1] *= stack[sp];
+          break;
+        case DIVIDE:
+          sp--;
+          stack[sp - 1] /= stack[sp];
+          break;
+        case ADDN:
+          stack[sp - 1] += code[pc++];
+          break;
+        case SUBN:
+          stack[sp - 1] -= code[pc++];
+          break;
+        case TIMESN:
+          stack[sp - 1] *= code[pc++];
+          break;
+        case DIVIDEN:
+          stack[sp - 1] /= code[pc++];
+          break;
+        case ADDV:
+          stack[sp - 1] += vars[code[pc++]];
+          break;
+        case SUBV:
+          stack[sp - 1] -= vars[code[pc++]];
+          break;
+        case TIMESV:
+          stack[sp - 1] *= vars[code[pc++]];
+          break;
+        case DIVIDEV:
+          stack[sp - 1] /= vars[code[pc++]];
+          break;
+        case PRINT:
+          buf.append(stack[--sp]).append(' ');
+          break;
+        case NEWLINE:
+          buf.append('\n');
+          if (buf.length() >= 1 << 16) {
+            out.print(buf);
+            buf.setLength(0);
+          }
+          break;
+        case HALT:
+          return;
+        default:
+          new Bug();
+        }
+      }
+    } catch (ArithmeticException e) {
+      throw new DivisionByZero(this.divisions.get(pc));
+    } finally {
+      out.print(buf);
+      out.flush();
+    }
+  }
+}
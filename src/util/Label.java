@@ -3,11 +3,12 @@ package util;
 public class Label
 {
   private int i;
-  private static int count = 0;
 
-  public Label()
+  // labels are numbered by their compilation (see
+  // "control.CompilationContext.newLabel()")
+  public Label(int i)
   {
-    i = count++;
+    this.i = i;
   }
 
   @Override
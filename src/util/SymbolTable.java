@@ -0,0 +1,124 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Interns names into dense int ids (0, 1, 2, ...), so that later
+// phases can compare names by id instead of by String.equals().
+// Names are interned straight from the bytes of the source, and
+// the bytes of all names are kept in one pool; a String is only
+// built for a name when someone asks for it.
+public class SymbolTable
+{
+  private int[] table; // open addressing: id + 1, or 0 for an empty slot
+  private byte[] pool; // bytes of all names
+  private int poolSize;
+  private int[] start; // name "id" is pool[start[id]..start[id + 1])
+  private int[] hash;
+  private String[] names; // names already turned into strings
+  private int size;
+
+  public SymbolTable()
+  {
+    this.table = new int[1024];
+    this.pool = new byte[8192];
+    this.poolSize = 0;
+    this.start = new int[513];
+    this.hash = new int[512];
+    this.names = new String[512];
+    this.size = 0;
+  }
+
+  private static int hash(ByteBuffer src, int offset, int length)
+  {
+    int h = 0;
+    for (int i = 0; i < length; i++)
+      h = 31 * h + src.get(offset + i);
+    return h;
+  }
+
+  private boolean same(int id, ByteBuffer src, int offset, int length)
+  {
+    int s = this.start[id];
+    if (this.start[id + 1] - s != length)
+      return false;
+    for (int i = 0; i < length; i++)
+      if (this.pool[s + i] != src.get(offset + i))
+        return false;
+    return true;
+  }
+
+  // the id of the name in src[offset..offset+length)
+  public int intern(ByteBuffer src, int offset, int length)
+  {
+    int h = hash(src, offset, length);
+    int mask = this.table.length - 1;
+    int i = h & mask;
+
+    for (;;) {
+      int id = this.table[i] - 1;
+      if (id < 0)
+        break;
+      if (this.hash[id] == h && same(id, src, offset, length))
+        return id;
+      i = (i + 1) & mask;
+    }
+
+    // a new name
+    int id = this.size++;
+    if (this.size == this.hash.length) {
+      this.hash = Arrays.copyOf(this.hash, 2 * this.size);
+      this.names = Arrays.copyOf(this.names, 2 * this.size);
+      this.start = Arrays.copyOf(this.start, 2 * this.size + 1);
+    }
+    while (this.poolSize + length > this.pool.length)
+      this.pool = Arrays.copyOf(this.pool, 2 * this.pool.length);
+    for (int k = 0; k < length; k++)
+      this.pool[this.poolSize + k] = src.get(offset + k);
+    this.poolSize += length;
+    this.start[id + 1] = this.poolSize;
+    this.hash[id] = h;
+    this.table[i] = id + 1;
+    // keep the load factor under 1/2
+    if (2 * this.size > this.table.length)
+      rehash();
+    return id;
+  }
+
+  public int intern(String s)
+  {
+    byte[] a = s.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+    return intern(ByteBuffer.wrap(a), 0, a.length);
+  }
+
+  private void rehash()
+  {
+    int[] t = new int[2 * this.table.length];
+    int mask = t.length - 1;
+
+    for (int id = 0; id < this.size; id++) {
+      int i = this.hash[id] & mask;
+      while (t[i] != 0)
+        i = (i + 1) & mask;
+      t[i] = id + 1;
+    }
+    this.table = t;
+    return;
+  }
+
+  public String name(int id)
+  {
+    String s = this.names[id];
+    if (s == null) {
+      s = new String(this.pool, this.start[id], this.start[id + 1]
+          - this.start[id], java.nio.charset.StandardCharsets.ISO_8859_1);
+      this.names[id] = s;
+    }
+    return s;
+  }
+
+  public int size()
+  {
+    return this.size;
+  }
+}
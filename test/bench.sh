@@ -0,0 +1,38 @@
+#!/bin/sh
+# Run the benchmarks of bench/Bench.java against the compiler in
+# "bin", on inputs generated into a temporary directory, e.g.
+#
+#   sh test/bench.sh          all of them
+#   sh test/bench.sh lex      one of them: lex, heap, ast or slp
+#
+# The numbers depend on the machine; compare runs on the same one.
+root="$(cd "$(dirname "$0")/.." && pwd)"
+tmp="$(mktemp -d)" || exit 1
+trap 'rm -rf "$tmp"' EXIT
+what="${1:-all}"
+
+javac -nowarn -cp "$root/bin" -d "$tmp" "$root/test/bench/Bench.java" \
+  || exit 1
+bench()
+{
+  java -Xms1g -Xmx1g -XX:+UseSerialGC -cp "$root/bin:$tmp" Bench "$@"
+}
+
+# about 13 MB of MiniJava, for the lexer and the parser
+if [ "$what" != slp ]; then
+  bench gen 20000 "$tmp/big.java" || exit 1
+  ls -l "$tmp/big.java" | awk '{ print "input: " $5 " bytes of MiniJava" }'
+fi
+
+if [ "$what" = all ] || [ "$what" = lex ]; then
+  bench lex "$tmp/big.java"
+fi
+if [ "$what" = all ] || [ "$what" = heap ]; then
+  bench heap "$tmp/big.java"
+fi
+if [ "$what" = all ] || [ "$what" = ast ]; then
+  bench ast "$tmp/big.java"
+fi
+if [ "$what" = all ] || [ "$what" = slp ]; then
+  bench slp 200000
+fi
@@ -0,0 +1,320 @@
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.ref.Reference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import ast.Ast;
+import lexer.Lexer;
+import lexer.Token;
+import lexer.TokenBuffer;
+import parser.Parser;
+import slp.Jit;
+import slp.Slp.Stm;
+import slp.Vm;
+import control.CompilationContext;
+import control.Control;
+
+// The benchmarks behind the numbers in the commit log, run by
+// "bench.sh" against the compiler in "bin". Each one runs a few
+// rounds to warm the JIT up before the rounds it reports. It is
+// not a MiniJava program, so it lives apart from the samples.
+//
+//   gen <classes> <file>   write a MiniJava program of about 1K per
+//                          class, the same for the same arguments
+//   lex <file>             lexer throughput, from a stream and from
+//                          a mapping, with and without "-swar"
+//   heap <file>            the heap the tokens of <file> keep, in the
+//                          parser's sliding window and all at once
+//   ast <file>             the heap the tree of <file> takes, and
+//                          the time to parse it
+//   slp <statements>       the straight-line program interpreters on
+//                          a random program, printing to nowhere
+//
+// The heap is measured as what is left after full collections, so
+// run it with a fixed heap and the serial collector for steady
+// numbers.
+public class Bench
+{
+  static final int WARMUP = 5;
+  static final int ROUNDS = 5;
+
+  public static void main(String[] args) throws Exception
+  {
+    switch (args.length > 0 ? args[0] : "") {
+    case "gen":
+      gen(Integer.parseInt(args[1]), Paths.get(args[2]));
+      break;
+    case "lex":
+      lex(Paths.get(args[1]));
+      break;
+    case "heap":
+      heap(Paths.get(args[1]));
+      break;
+    case "ast":
+      ast(Paths.get(args[1]));
+      break;
+    case "slp":
+      slp(Integer.parseInt(args[1]));
+      break;
+    default:
+      System.out.println("usage: Bench gen <classes> <file> | lex <file>"
+          + " | heap <file> | ast <file> | slp <statements>");
+      System.exit(1);
+    }
+    return;
+  }
+
+  // ///////////////////////////////////////////
+  // the input
+
+  // A program of "n" classes, each with fields, a loop over an
+  // array, a call chain and comments, and with names of varying
+  // lengths, so the lexer sees a realistic mix of tokens.
+  static void gen(int n, Path file) throws IOException
+  {
+    Random r = new Random(n);
+
+    try (Writer w = new BufferedWriter(Files.newBufferedWriter(file))) {
+      w.write("class Main {\n  public static void main(String[] a) {\n"
+          + "    System.out.println(new C0().run(10));\n  }\n}\n\n");
+      for (int i = 0; i < n; i++) {
+        String c = "C" + i;
+        String v = "value" + r.nextInt(1000);
+        w.write("// the class " + c + "\n");
+        w.write("class " + c + (i % 4 != 0 ? " extends C" + (i - 1) : "")
+            + " {\n");
+        w.write("  int " + v + ";\n  int[] numbers;\n  boolean done;\n  "
+            + c + " next;\n\n");
+        w.write("  public int run(int n) {\n    int i;\n    int sum;\n"
+            + "    i = 0;\n    sum = " + r.nextInt(100000) + ";\n"
+            + "    numbers = new int[n];\n");
+        w.write("    while (i < n) {\n      numbers[i] = i * "
+            + (1 + r.nextInt(9)) + " + " + v + ";\n"
+            + "      if (numbers[i] < " + r.nextInt(1000)
+            + " && !done) sum = sum + numbers[i];\n"
+            + "      else sum = sum - 1;\n      i = i + 1;\n    }\n");
+        w.write("    System.out.println(sum);\n"
+            + "    return this.step(sum, numbers.length);\n  }\n\n");
+        w.write("  /* (x + y) * (x - y), and a fresh " + c + " */\n"
+            + "  public int step(int x, int y) {\n    int z;\n"
+            + "    z = (x + y) * (x - y);\n    next = new " + c + "();\n"
+            + "    done = true;\n    return z;\n  }\n}\n\n");
+      }
+    }
+    return;
+  }
+
+  // ///////////////////////////////////////////
+  // the lexer
+
+  // open a lexer on "file", through a stream or a mapping
+  static Lexer open(Path file, boolean mapped, CompilationContext ctx)
+      throws IOException
+  {
+    if (mapped)
+      return new Lexer(file, ctx);
+    return new Lexer(file.toString(), new FileInputStream(file.toFile()),
+        ctx);
+  }
+
+  // lex "file" to the end, as the parser pulls tokens, keeping the
+  // buffer as small as the parser does, and return the number of
+  // tokens
+  static int lexAll(Path file, boolean mapped, boolean swar)
+      throws IOException
+  {
+    CompilationContext ctx = new CompilationContext();
+    ctx.swar = swar;
+    try (Lexer lexer = open(file, mapped, ctx)) {
+      TokenBuffer tokens = new TokenBuffer(lexer);
+      int keep = 0;
+      int i = 0;
+
+      tokens.mark(keep);
+      while (tokens.kind(i) != Token.Kind.TOKEN_EOF) {
+        if ((++i & 4095) == 0) {
+          tokens.mark(i);
+          tokens.release(keep);
+          keep = i;
+        }
+      }
+      return i;
+    }
+  }
+
+  // the heap in use, after full collections
+  static long used()
+  {
+    Runtime rt = Runtime.getRuntime();
+
+    for (int k = 0; k < 4; k++)
+      System.gc();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  static void lex(Path file) throws IOException
+  {
+    double mb = Files.size(file) / 1e6;
+
+    for (boolean mapped : new boolean[] { false, true })
+      for (boolean swar : new boolean[] { false, true }) {
+        int tokens = 0;
+        for (int k = 0; k < WARMUP; k++)
+          tokens = lexAll(file, mapped, swar);
+        long best = Long.MAX_VALUE;
+        for (int k = 0; k < ROUNDS; k++) {
+          long start = System.nanoTime();
+          lexAll(file, mapped, swar);
+          best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format(
+            "lex %-6s swar=%-5b %8.1f ms  %7.1f MB/s  %6.1f Mtokens/s",
+            mapped ? "mmap" : "stream", swar, best / 1e6, mb / (best / 1e9),
+            tokens / 1e6 / (best / 1e9)));
+      }
+    return;
+  }
+
+  // ///////////////////////////////////////////
+  // the heap of the tokens
+
+  // The tokens of "file" as the parser keeps them (a window moved
+  // along every 4096 tokens) and all of them (as "fillAll()" keeps
+  // them for the parallel mode), each with the symbol table the
+  // lexemes are interned in. The window and the symbol table do not
+  // grow with the number of tokens; the full buffer does.
+  static void heap(Path file) throws IOException
+  {
+    for (boolean all : new boolean[] { false, true }) {
+      long base = used();
+      CompilationContext ctx = new CompilationContext();
+      try (Lexer lexer = open(file, false, ctx)) {
+        TokenBuffer tokens = new TokenBuffer(lexer);
+        int n;
+        if (all)
+          n = tokens.fillAll();
+        else {
+          int keep = 0;
+          n = 0;
+          tokens.mark(keep);
+          while (tokens.kind(n) != Token.Kind.TOKEN_EOF) {
+            if ((++n & 4095) == 0) {
+              tokens.mark(n);
+              tokens.release(keep);
+              keep = n;
+            }
+          }
+        }
+        long bytes = used() - base;
+        System.out.println(String.format(
+            "heap %-6s %9d tokens, %6d symbols: %8.1f KB, %5.2f bytes/token",
+            all ? "full" : "window", n, ctx.symbols.size(), bytes / 1e3,
+            (double) bytes / n));
+        Reference.reachabilityFence(tokens);
+      }
+    }
+    return;
+  }
+
+  // ///////////////////////////////////////////
+  // the tree
+
+  static Ast parse(Path file) throws IOException
+  {
+    try (Lexer lexer = open(file, false, new CompilationContext())) {
+      return new Parser(lexer).parse();
+    }
+  }
+
+  // The heap the tree of "file" keeps once the parser is gone (with
+  // the symbol table, which the tree names its ids in), per node,
+  // and the time to lex and parse the file into it.
+  static void ast(Path file) throws IOException
+  {
+    for (int k = 0; k < WARMUP; k++)
+      parse(file);
+    long best = Long.MAX_VALUE;
+    for (int k = 0; k < ROUNDS; k++) {
+      long start = System.nanoTime();
+      parse(file);
+      best = Math.min(best, System.nanoTime() - start);
+    }
+
+    long base = used();
+    Ast ast = parse(file);
+    long bytes = used() - base;
+    System.out.println(String.format(
+        "ast %9d nodes: %8.1f KB, %5.2f bytes/node, parsed in %.1f ms",
+        ast.size(), bytes / 1e3, (double) bytes / ast.size(), best / 1e6));
+    Reference.reachabilityFence(ast);
+    return;
+  }
+
+  // ///////////////////////////////////////////
+  // the straight-line programs
+
+  // the best time of "r" over the rounds, after the warm-up ones
+  static long time(Runnable r)
+  {
+    for (int k = 0; k < WARMUP; k++)
+      r.run();
+    long best = Long.MAX_VALUE;
+    for (int k = 0; k < ROUNDS; k++) {
+      long start = System.nanoTime();
+      r.run();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best;
+  }
+
+  // A random program of "n" statements, its expressions at most 4
+  // deep, run by walking its tree, and compiled to and run on the
+  // stack machine, and to JVM code. The optimizer is left out, so
+  // each runs the program as written.
+  static void slp(int n)
+  {
+    ByteArrayOutputStream text = new ByteArrayOutputStream();
+    new slp.Generator(n, 4, 42).generate(new PrintStream(text));
+    CompilationContext ctx = new CompilationContext();
+    Stm.T prog = new slp.Parser("random", new ByteArrayInputStream(text
+        .toByteArray()), ctx).parse();
+    PrintStream nowhere = new PrintStream(OutputStream.nullOutputStream());
+    PrintStream stdout = System.out;
+
+    ctx.slpAction = Control.ConSlp.T.INTERP;
+    ctx.slpOpt = false;
+    System.setOut(nowhere);
+    long interp = time(() -> new slp.Main("random", ctx).doit(prog));
+    long vmCompile = time(() -> new Vm(prog));
+    Vm vm = new Vm(prog);
+    long vmRun = time(() -> vm.run(nowhere));
+    long jitCompile = time(() -> Jit.compile(prog));
+    Jit jit = Jit.compile(prog);
+    long jitRun = jit == null ? -1 : time(() -> jit.run(nowhere));
+    System.setOut(stdout);
+
+    System.out.println(String.format("slp %d statements, %.1f MB of text",
+        n, text.size() / 1e6));
+    System.out.println(String.format("  tree walk    %8.1f ms",
+        interp / 1e6));
+    System.out.println(String.format(
+        "  vm           %8.1f ms to compile, %8.1f ms to run",
+        vmCompile / 1e6, vmRun / 1e6));
+    if (jit == null)
+      System.out.println("  jit          too large for a class");
+    else
+      System.out.println(String.format(
+          "  jit          %8.1f ms to compile, %8.1f ms to run",
+          jitCompile / 1e6, jitRun / 1e6));
+    return;
+  }
+}
@@ -0,0 +1,70 @@
+#!/bin/sh
+# Regression tests of the tree cache ("-cache") on broken files: a
+# cached tree cut short, or with bytes overwritten, must be taken
+# as a miss, and the file parsed again, rather than end the
+# compilation. The exit status is 1 if any test fails.
+root="$(cd "$(dirname "$0")/.." && pwd)"
+tmp="$(mktemp -d)" || exit 1
+trap 'rm -rf "$tmp"' EXIT
+failed=0
+src="$root/test/BinaryTree.java"
+
+# check <name>: compiling <src> with the cache, which holds the
+# broken tree, must exit with status 0, and print nothing
+check()
+{
+  if out="$(java -cp "$root/bin" Tiger -cache "$tmp/cache" "$src" 2>&1)" \
+    && [ -z "$out" ]
+  then
+    echo "ok      $name"
+  else
+    echo "FAILED  $name"
+    echo "$out" | head -5 | cut -c1-200
+    failed=1
+  fi
+}
+
+# the tree as stored
+java -cp "$root/bin" Tiger -cache "$tmp/cache" "$src" || exit 1
+ast="$(ls "$tmp"/cache/*.ast)"
+cp "$ast" "$tmp/good"
+size=$(wc -c < "$tmp/good")
+# the number of nodes, the third int of the header
+nodes=$(od -A n -j 8 -N 4 -t d4 "$tmp/good" | tr -d ' ')
+
+# the tree cut short: in the header, in the names, and in the nodes
+for len in 0 10 20 $((size - 28 * nodes)) $((size - 4)); do
+  head -c $len "$tmp/good" > "$ast"
+  name="cache, cut to $len of $size bytes"
+  check
+done
+
+# An int overwritten with a large positive number, and with -2 (in
+# the byte order of x86): the counts of the header, the length of
+# the first name, and one int in the middle of each array of the
+# nodes (kind, line, value, aux, child, last and next).
+base=$((size - 28 * nodes))
+for at in 8 12 16 $(awk -v b=$base -v n=$nodes 'BEGIN {
+  for (k = 0; k < 7; k++) print b + 4 * (k * n + int(n / 2))
+}'); do
+  for int in max -2; do
+    cp "$tmp/good" "$ast"
+    if [ $int = max ]; then
+      printf '\377\377\377\177'
+    else
+      printf '\376\377\377\377'
+    fi | dd of="$ast" bs=1 seek=$at conv=notrunc 2>/dev/null
+    name="cache, int at $at overwritten with $int"
+    check
+  done
+done
+
+# and the file is good again once parsed
+name="cache, stored again"
+check
+if ! cmp -s "$tmp/good" "$ast"; then
+  echo "FAILED  cache, tree stored again differs"
+  failed=1
+fi
+
+exit $failed
@@ -0,0 +1,95 @@
+#!/bin/sh
+# A client of the compile daemon ("java Tiger -server <socket>")
+# which starts no JVM, e.g.
+#
+#   sh test/client.sh /tmp/tiger.sock [options] <filename>...
+#
+# It needs socat, or a netcat with Unix domain sockets ("nc -U").
+# It speaks the framing of "Daemon.java", all integers big-endian:
+#
+#   request: int32 the number of arguments, then each argument as
+#            uint16 its length in bytes, then the bytes (UTF-8)
+#   reply:   frames of the output, each int32 its length, then the
+#            bytes, ended by int32 -1 and int32 the exit status
+#
+# The daemon runs in a directory of its own, so the files to compile,
+# and the directory of "-cache", are sent absolute. Argument files
+# ("@file") are left to the Java client ("-client").
+if [ $# -lt 1 ]; then
+  echo "usage: client.sh <socket> [options] <filename>..."
+  exit 1
+fi
+socket="$1"
+shift
+tmp="$(mktemp -d)" || exit 1
+trap 'rm -rf "$tmp"' EXIT
+
+# the bytes of the big-endian integer <n>, <bytes> long
+int()
+{
+  n=$1
+  i=$(($2 - 1))
+  while [ $i -ge 0 ]; do
+    printf "\\$(printf %o $(((n >> (8 * i)) & 255)))"
+    i=$((i - 1))
+  done
+}
+
+absolute()
+{
+  case "$1" in
+  /*) printf %s "$1" ;;
+  *) printf %s "$PWD/$1" ;;
+  esac
+}
+
+# the request, with the paths made absolute; the options which take
+# an argument are those of "CommandLine.java"
+int $# 4 > "$tmp/request"
+value=
+for a in "$@"; do
+  if [ -n "$value" ]; then
+    [ "$value" = -cache ] && a="$(absolute "$a")"
+    value=
+  else
+    case "$a" in
+    -cache|-cachesize|-client|-jobs|-mmap|-server|-slp|-slpgen|-swar|-train)
+      value="$a" ;;
+    -*) ;;
+    @*)
+      echo "argument files are not supported, use -client"
+      exit 1 ;;
+    *) a="$(absolute "$a")" ;;
+    esac
+  fi
+  int $(printf %s "$a" | wc -c) 2 >> "$tmp/request"
+  printf %s "$a" >> "$tmp/request"
+done
+
+if command -v socat > /dev/null; then
+  socat -t 86400 - UNIX-CONNECT:"$socket" < "$tmp/request" > "$tmp/reply"
+else
+  nc -U "$socket" < "$tmp/request" > "$tmp/reply"
+fi || { echo "no compile daemon on $socket"; exit 1; }
+
+# copy the frames out, and exit with the status
+od -A n -v -t u1 "$tmp/reply" | LC_ALL=C awk '
+function int32(  v, k) {
+  v = 0
+  for (k = 0; k < 4; k++) v = v * 256 + b[p++]
+  return v >= 2147483648 ? v - 4294967296 : v
+}
+{ for (i = 1; i <= NF; i++) b[n++] = $i }
+END {
+  p = 0
+  while (p + 4 <= n) {
+    len = int32()
+    if (len < 0) {
+      if (p + 4 > n) break
+      exit int32()
+    }
+    for (k = 0; k < len && p < n; k++) printf "%c", b[p++]
+  }
+  print "the compile daemon hung up"
+  exit 1
+}'
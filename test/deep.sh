@@ -0,0 +1,86 @@
+#!/bin/sh
+# Regression tests on deeply nested input, which the parsers and the
+# passes over the trees must take without recursing (so without a
+# StackOverflowError). The inputs are large, so they are generated
+# into a temporary directory rather than kept here. The exit status
+# is 1 if any test fails.
+root="$(cd "$(dirname "$0")/.." && pwd)"
+tmp="$(mktemp -d)" || exit 1
+trap 'rm -rf "$tmp"' EXIT
+failed=0
+
+# check <name> <expected output> <arguments of Tiger...>: the
+# compiler must exit with status 0, printing the expected output
+check()
+{
+  name="$1"
+  expected="$2"
+  shift 2
+  if out="$(java -cp "$root/bin" Tiger "$@" 2>&1)" && [ "$out" = "$expected" ]
+  then
+    echo "ok      $name"
+  else
+    echo "FAILED  $name"
+    echo "$out" | head -5 | cut -c1-200
+    failed=1
+  fi
+}
+
+# A MiniJava program with expressions nested 100000 deep: in
+# parentheses, under binary and unary operators, and in array
+# sizes and call arguments.
+awk -v n=100000 'BEGIN {
+  printf "class Deep {\n  public static void main(String[] a) {\n"
+  printf "    System.out.println("
+  for (i = 0; i < n; i++) printf "("
+  printf "1"
+  for (i = 0; i < n; i++) printf ")"
+  printf ");\n  }\n}\n\nclass A {\n  public int f(int x) {\n    int y;\n"
+  printf "    y = "
+  for (i = 0; i < n; i++) printf "x - ("
+  printf "0"
+  for (i = 0; i < n; i++) printf ")"
+  printf ";\n    if ("
+  for (i = 0; i < n; i++) printf "!"
+  printf "(y < x)) y = 0; else y = 1;\n    return this.f(this.f("
+  for (i = 0; i < n; i++) printf "new int[("
+  printf "y"
+  for (i = 0; i < n; i++) printf ")].length"
+  printf "));\n  }\n}\n"
+}' > "$tmp/Deep.java"
+for opt in "" -lazy -parallel -pipeline; do
+  check "java, 100000 deep $opt" "" $opt "$tmp/Deep.java"
+done
+check "java, 100000 deep -cache" "" -cache "$tmp/cache" "$tmp/Deep.java"
+check "java, 100000 deep -cache (hit)" "" -cache "$tmp/cache" "$tmp/Deep.java"
+
+# A straight-line program with chains 1000000 deep: parentheses, a
+# left-nested sum, right-nested differences, and Eseqs nested in
+# the first argument of a print. Each backend which runs in the JVM
+# must print the same, with and without the optimizer.
+awk -v n=1000000 'BEGIN {
+  printf "a := "
+  for (i = 0; i < n; i++) printf "("
+  printf "1"
+  for (i = 0; i < n; i++) printf ")"
+  printf ";\nb := 0"
+  for (i = 0; i < n; i++) printf " + 1"
+  printf ";\nc := "
+  for (i = 0; i < n; i++) printf "1 - ("
+  printf "0"
+  for (i = 0; i < n; i++) printf ")"
+  printf ";\nprint("
+  for (i = 0; i < n; i++) printf "(x := x + 1, "
+  printf "x"
+  for (i = 0; i < n; i++) printf ")"
+  printf ", a, b, c)\n"
+}' > "$tmp/deep.slp"
+check "slp, 1000000 deep, args" "4" -slp args "$tmp/deep.slp"
+for action in interp vm jit; do
+  for opt in "" "-slp noopt"; do
+    check "slp, 1000000 deep, $action $opt" "1000000 1 1000000 0 " \
+      $opt -slp $action "$tmp/deep.slp"
+  done
+done
+
+exit $failed
@@ -0,0 +1,23 @@
+#!/bin/sh
+# Regression tests of the syntax errors: each errors/<name>.java must
+# give the diagnostics in errors/<name>.out, whichever way it is
+# parsed. The exit status is 1 if any test fails.
+root="$(cd "$(dirname "$0")/.." && pwd)"
+failed=0
+cd "$root/test/errors" || exit 1
+
+for f in *.java; do
+  name="${f%.java}"
+  for opt in "" -lazy -parallel -pipeline "-lazy -parallel"; do
+    out="$(java -cp "$root/bin" Tiger $opt "$f" 2>&1)"
+    if [ "$out" = "$(cat "$name.out")" ]; then
+      echo "ok      errors, $name $opt"
+    else
+      echo "FAILED  errors, $name $opt"
+      echo "$out" | head -5 | cut -c1-200
+      failed=1
+    fi
+  done
+done
+
+exit $failed
@@ -0,0 +1,40 @@
+// Syntax errors which escape a statement, in the signatures and the
+// bodies of methods: the parser goes on at the next method, and
+// reports the errors of each (see "errors.sh").
+class Recover {
+  public static void main(String[] a) {
+    System.out.println(new A().f(1));
+  }
+}
+
+class A {
+  int x;
+  public int f(int y) {
+    int z;
+    z = y + 1;
+    return z z;
+  }
+  public int g(int y) {
+    int w
+    w = y;
+    while (w < 10) {
+      w = w + 1 +;
+    }
+    return w;
+  }
+  public int h(int y y) {
+    return y;
+  }
+  public int k() {
+    return 1;
+  }
+  public boolean m() {
+    return true
+  }
+}
+
+class B {
+  public int f() {
+    return 1 +;
+  }
+}
@@ -0,0 +1,57 @@
+#!/bin/sh
+# Regression tests of the SLP backends which compile to x86 with gcc:
+# the stack one ("-slp compile") and the register one ("-slp regs").
+# They need a gcc which links 32-bit code; without one, they are
+# skipped. The exit status is 1 if any test fails.
+root="$(cd "$(dirname "$0")/.." && pwd)"
+tmp="$(mktemp -d)" || exit 1
+trap 'rm -rf "$tmp"' EXIT
+failed=0
+cd "$tmp" || exit 1
+
+# run <file> <arguments of Tiger...>: compile <file> to "a.out", and
+# print what it prints
+run()
+{
+  file="$1"
+  shift
+  rm -f a.out
+  java -cp "$root/bin" Tiger -slp compile "$@" "$file" 2>&1 && ./a.out
+}
+
+echo 'print(1)' > probe.slp
+if [ "$(run probe.slp 2>/dev/null)" != "1 " ]; then
+  echo "skipped slp backends: no gcc -m32"
+  exit 0
+fi
+
+# check <name> <expected output> <file> <arguments of Tiger...>
+check()
+{
+  name="$1"
+  expected="$2"
+  shift 2
+  if out="$(run "$@")" && [ "$out" = "$expected" ]; then
+    echo "ok      $name"
+  else
+    echo "FAILED  $name"
+    echo "$out" | head -5 | cut -c1-200
+    failed=1
+  fi
+}
+
+# Variables named as the symbols of the runtime, of libc ("write",
+# which the runtime calls) and "main". Without the optimizer, each
+# stays a variable in memory, or in a register with "regs".
+cat > names.slp <<'EOF'
+write := 7; slp_len := 1; slp_buf := 2; slp_print := 3;
+slp_newline := 4; slp_flush := 5; slp_pow10 := 6; main := 8;
+print(write, slp_len, slp_buf, slp_print, slp_newline, slp_flush,
+  slp_pow10, main)
+EOF
+for opt in "" "-slp regs"; do
+  check "slp, runtime names $opt" "7 1 2 3 4 5 6 8 " names.slp \
+    -slp noopt $opt
+done
+
+exit $failed
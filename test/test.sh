@@ -0,0 +1,20 @@
+#!/bin/sh
+# the sh version of test.bat: compile the samples in this directory,
+# then run the regression tests of deep.sh, errors.sh, cache.sh and
+# slp.sh
+root="$(cd "$(dirname "$0")/.." && pwd)"
+echo ==================================================
+echo test starting
+echo =============
+for f in "$root"/test/*.java; do
+  java -cp "$root/bin" Tiger "$f"
+done
+status=0
+sh "$root/test/deep.sh" || status=1
+sh "$root/test/errors.sh" || status=1
+sh "$root/test/cache.sh" || status=1
+sh "$root/test/slp.sh" || status=1
+echo =============
+echo test finished
+echo ==================================================
+exit $status
@@ -0,0 +1 @@
+@java -XX:SharedArchiveFile=%~dp0..\tiger.jsa -cp %~dp0..\tiger.jar Tiger %*
@@ -0,0 +1,5 @@
+#!/bin/sh
+# run the compiler with the class-data archive made by train.sh
+root="$(cd "$(dirname "$0")/.." && pwd)"
+exec java -XX:SharedArchiveFile="$root/tiger.jsa" -cp "$root/tiger.jar" \
+  Tiger "$@"
@@ -0,0 +1,8 @@
+@echo ==================================================
+@echo training the class-data archive
+@echo =============
+jar cf %~dp0..\tiger.jar -C %~dp0..\bin .
+java -XX:ArchiveClassesAtExit=%~dp0..\tiger.jsa -cp %~dp0..\tiger.jar Tiger -train %~dp0.
+@echo =============
+@echo archive written to ..\tiger.jsa, run tiger.bat to use it
+@echo ==================================================
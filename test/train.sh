@@ -0,0 +1,14 @@
+#!/bin/sh
+# Train the class-data archive of the compiler on the files in
+# this directory; run tiger.sh to use it. An archive only works
+# with classes from a jar, on the same class path as at training.
+root="$(cd "$(dirname "$0")/.." && pwd)"
+echo ==================================================
+echo training the class-data archive
+echo =============
+jar cf "$root/tiger.jar" -C "$root/bin" . || exit 1
+java -XX:ArchiveClassesAtExit="$root/tiger.jsa" -cp "$root/tiger.jar" \
+  Tiger -train "$root/test"
+echo =============
+echo archive written to "$root/tiger.jsa", run tiger.sh to use it
+echo ==================================================